@@ -19,14 +19,22 @@ package com.googlecode.lucene.spatial.base.shape;
 
 import com.googlecode.lucene.spatial.base.context.JtsSpatialContext;
 import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.util.PolygonExtracter;
 import com.vividsolutions.jts.operation.predicate.RectangleIntersects;
+import com.vividsolutions.jts.util.AssertionFailedException;
 import org.apache.lucene.spatial.base.shape.SpatialRelation;
 import org.apache.lucene.spatial.base.context.SpatialContext;
 import org.apache.lucene.spatial.base.shape.*;
 import org.apache.lucene.spatial.base.shape.Point;
 import org.apache.lucene.spatial.base.shape.simple.PointImpl;
 
-public class JtsGeometry implements Shape {
+import java.util.List;
+
+public class JtsGeometry implements ClippableShape {
+  //below this many points, relate() is cheap enough that clipping isn't worth it
+  private static final int MIN_POINTS_TO_CLIP = 64;
+  private static final double MAX_OVERLAP_TO_CLIP = 0.5;
+
   public final Geometry geo;
   private final boolean hasArea;
 
@@ -139,6 +147,38 @@ public class JtsGeometry implements Shape {
     return SpatialRelation.INTERSECTS;
   }
 
+  /**
+   * Intersects a polygonal geometry with the rectangle, keeping only the polygons of the result. This is worthwhile
+   * for geometries with many points, like coastlines, when most of them are outside the rectangle; so it's skipped
+   * for geometries with few points and for rectangles that overlap much of the geometry's envelope. If the overlay
+   * fails, as it may for an invalid polygon, this geometry is returned.
+   */
+  @Override
+  public Shape clip(Rectangle rect, SpatialContext ctx) {
+    if (!hasArea || geo.getNumPoints() < MIN_POINTS_TO_CLIP || rect.getCrossesDateLine())
+      return this;
+    Envelope env = new Envelope(rect.getMinX(), rect.getMaxX(), rect.getMinY(), rect.getMaxY());
+    Envelope geoEnv = geo.getEnvelopeInternal();
+    //if the rectangle overlaps much of the geometry's envelope, few points would be clipped away for the overlay's cost
+    if (env.intersection(geoEnv).getArea() > geoEnv.getArea() * MAX_OVERLAP_TO_CLIP)
+      return this;
+    GeometryFactory factory = getGeometryFactory(ctx);
+    Geometry clipped;
+    try {
+      clipped = geo.intersection(factory.toGeometry(env));
+    } catch (TopologyException e) {
+      return this;//e.g. an invalid polygon; relate() may still cope with it
+    } catch (AssertionFailedException e) {
+      return this;//overlay robustness failures are reported this way too
+    }
+    //the intersection might include lines & points where the rectangle touches the geometry's boundary
+    @SuppressWarnings("unchecked")
+    List<Polygon> polygons = PolygonExtracter.getPolygons(clipped);
+    if (polygons.isEmpty())
+      return this;
+    return new JtsGeometry(factory.buildGeometry(polygons));
+  }
+
   @Override
   public String toString() {
     return geo.toString();
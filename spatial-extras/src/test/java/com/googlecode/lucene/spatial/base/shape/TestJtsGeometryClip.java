@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.lucene.spatial.base.shape;
+
+import com.googlecode.lucene.spatial.base.context.JtsSpatialContext;
+import com.vividsolutions.jts.geom.Coordinate;
+import org.apache.lucene.spatial.base.distance.DistanceUnits;
+import org.apache.lucene.spatial.base.shape.Rectangle;
+import org.apache.lucene.spatial.base.shape.Shape;
+import org.apache.lucene.spatial.base.shape.SpatialRelation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link JtsGeometry#clip(Rectangle, org.apache.lucene.spatial.base.context.SpatialContext)}
+ */
+public class TestJtsGeometryClip {
+
+  private final JtsSpatialContext ctx = new JtsSpatialContext(DistanceUnits.CARTESIAN);
+
+  /** A star-like polygon around the origin with many vertices. */
+  private JtsGeometry makeStar(int numPoints) {
+    Coordinate[] coords = new Coordinate[numPoints + 1];
+    for (int i = 0; i < numPoints; i++) {
+      double angle = 2 * Math.PI * i / numPoints;
+      double radius = i % 2 == 0 ? 100 : 70;
+      coords[i] = new Coordinate(radius * Math.cos(angle), radius * Math.sin(angle));
+    }
+    coords[numPoints] = coords[0];
+    return new JtsGeometry(ctx.factory.createPolygon(ctx.factory.createLinearRing(coords), null));
+  }
+
+  @Test
+  public void testSmallGeometryNotClipped() {
+    JtsGeometry star = makeStar(10);
+    assertSame(star, star.clip(ctx.makeRect(0, 50, 0, 50), ctx));
+  }
+
+  @Test
+  public void testCoveringRectNotClipped() {
+    JtsGeometry star = makeStar(400);
+    assertSame(star, star.clip(ctx.makeRect(-200, 200, -200, 200), ctx));
+  }
+
+  @Test
+  public void testMostlyOverlappingRectNotClipped() {
+    JtsGeometry star = makeStar(400);
+    assertSame(star, star.clip(ctx.makeRect(-90, 200, -200, 200), ctx));
+  }
+
+  @Test
+  public void testInvalidGeometryNotClipped() {
+    //a figure eight; its ring crosses itself, so the overlay fails
+    final int numPoints = 100;
+    Coordinate[] coords = new Coordinate[numPoints + 1];
+    for (int i = 0; i < numPoints; i++) {
+      double angle = 2 * Math.PI * i / numPoints;
+      coords[i] = new Coordinate(100 * Math.sin(angle), 50 * Math.sin(2 * angle));
+    }
+    coords[numPoints] = coords[0];
+    JtsGeometry eight = new JtsGeometry(ctx.factory.createPolygon(ctx.factory.createLinearRing(coords), null));
+    assertSame(eight, eight.clip(ctx.makeRect(-10, 50, -40, 40), ctx));
+  }
+
+  @Test
+  public void testClipPreservesRelations() {
+    JtsGeometry star = makeStar(400);
+    final int n = 8;
+    for (int cx = 0; cx < n; cx++) {
+      for (int cy = 0; cy < n; cy++) {
+        Rectangle cell = ctx.makeRect(-120 + cx * 30, -120 + (cx + 1) * 30, -120 + cy * 30, -120 + (cy + 1) * 30);
+        if (star.relate(cell, ctx) != SpatialRelation.INTERSECTS)
+          continue;
+        Shape clipped = star.clip(cell, ctx);
+        assertTrue(clipped instanceof JtsGeometry);
+        assertTrue(((JtsGeometry) clipped).geo.getNumPoints() < star.geo.getNumPoints());
+        //sub-cells
+        for (int sx = 0; sx < 4; sx++) {
+          for (int sy = 0; sy < 4; sy++) {
+            Rectangle sub = ctx.makeRect(cell.getMinX() + sx * 7.5, cell.getMinX() + (sx + 1) * 7.5,
+                cell.getMinY() + sy * 7.5, cell.getMinY() + (sy + 1) * 7.5);
+            SpatialRelation expected = star.relate(sub, ctx);
+            SpatialRelation actual = clipped.relate(sub, ctx);
+            if (expected == SpatialRelation.INTERSECTS && actual == SpatialRelation.WITHIN)
+              continue;//the clipped shape is smaller
+            assertEquals(sub.toString(), expected, actual);
+            //points
+            assertEquals(star.relate(sub.getCenter(), ctx), clipped.relate(sub.getCenter(), ctx));
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.base.prefix;
+
+import java.util.Arrays;
+
+/**
+ * Encodes the cells of a {@link SpatialPrefixTree} whose tokens use a fixed alphabet of 2^bitsPerLevel characters as
+ * primitive longs, so that cells can be navigated with bit arithmetic instead of String concatenation. Tokens are
+ * only needed where terms are read or written.
+ * <p/>
+ * The characters of a token, as their index into the sorted alphabet, are concatenated as bits beneath a leading
+ * sentinel 1 bit that marks the level: the world cell (empty token) is 1, its first sub-cell is 1 followed by
+ * bitsPerLevel zero bits, and so on. For the quad and geohash trees the characters are themselves interleaved x & y
+ * bits, so the bits after the sentinel are the cell's Morton (Z-order) code. Ids of the same level sort like their
+ * tokens.
+ * <p/>
+ * Immutable and threadsafe.
+ */
+public final class CellIds {
+
+  private final int bitsPerLevel;
+  private final int maxLevels;
+  private final byte[] alphabet;
+  private final int[] charToDigit;//-1 if not in the alphabet
+
+  /**
+   * @param bitsPerLevel the number of bits of each character
+   * @param alphabet     the token characters (all ASCII), sorted; its length must be 2^bitsPerLevel
+   */
+  public CellIds(int bitsPerLevel, byte[] alphabet) {
+    if (alphabet.length != 1 << bitsPerLevel)
+      throw new IllegalArgumentException("alphabet needs " + (1 << bitsPerLevel) + " characters");
+    this.bitsPerLevel = bitsPerLevel;
+    this.maxLevels = 62 / bitsPerLevel;//the sentinel bit must not be the sign bit
+    this.alphabet = alphabet.clone();
+    this.charToDigit = new int[128];
+    Arrays.fill(charToDigit, -1);
+    for (int i = 0; i < alphabet.length; i++) {
+      if (i > 0 && alphabet[i] <= alphabet[i - 1])
+        throw new IllegalArgumentException("alphabet must be sorted");
+      charToDigit[alphabet[i]] = i;
+    }
+  }
+
+  public int getBitsPerLevel() {
+    return bitsPerLevel;
+  }
+
+  /** The deepest level an id can represent. Deeper cells of the tree only have tokens. */
+  public int getMaxLevels() {
+    return maxLevels;
+  }
+
+  public long getWorldId() {
+    return 1L;
+  }
+
+  public int getLevel(long id) {
+    assert id > 0;
+    return (63 - Long.numberOfLeadingZeros(id)) / bitsPerLevel;
+  }
+
+  /** The id of a sub-cell. The digit is the index of its last token character in the alphabet. */
+  public long getChild(long id, int digit) {
+    assert digit >= 0 && digit < alphabet.length;
+    assert getLevel(id) < maxLevels;
+    return (id << bitsPerLevel) | digit;
+  }
+
+  public long getParent(long id) {
+    assert id > 1;
+    return id >>> bitsPerLevel;
+  }
+
+  /** The index of the character at the given level (1 based) of the cell's token. */
+  public int getDigit(long id, int level) {
+    int shift = (getLevel(id) - level) * bitsPerLevel;
+    assert level > 0 && shift >= 0;
+    return (int) (id >>> shift) & ((1 << bitsPerLevel) - 1);
+  }
+
+  /** The cell's digits without the sentinel bit; i.e. the Morton code for the quad and geohash trees. */
+  public long getPath(long id) {
+    return id & ~Long.highestOneBit(id);
+  }
+
+  /** Whether the ancestor is the same cell as the descendant, or one of its parents. */
+  public boolean contains(long ancestor, long descendant) {
+    int levelDiff = getLevel(descendant) - getLevel(ancestor);
+    return levelDiff >= 0 && (descendant >>> (levelDiff * bitsPerLevel)) == ancestor;
+  }
+
+  /** Note: a trailing leaf byte isn't allowed. */
+  public long fromToken(CharSequence token) {
+    checkLevel(token.length());
+    long id = 1L;
+    for (int i = 0; i < token.length(); i++) {
+      id = (id << bitsPerLevel) | toDigit(token.charAt(i));
+    }
+    return id;
+  }
+
+  /** Note: a trailing leaf byte isn't allowed. */
+  public long fromToken(byte[] bytes, int off, int len) {
+    checkLevel(len);
+    long id = 1L;
+    for (int i = off; i < off + len; i++) {
+      id = (id << bitsPerLevel) | toDigit(bytes[i]);
+    }
+    return id;
+  }
+
+  private void checkLevel(int level) {
+    if (level > maxLevels)
+      throw new IllegalArgumentException("Level " + level + " is beyond max id level " + maxLevels);
+  }
+
+  private int toDigit(int c) {
+    int digit = c >= 0 && c < charToDigit.length ? charToDigit[c] : -1;
+    if (digit < 0)
+      throw new IllegalArgumentException("Unexpected token character: " + (char) c);
+    return digit;
+  }
+
+  /**
+   * Writes the cell's token into dest, which must have room for {@link #getLevel(long)} bytes.
+   *
+   * @return the token length
+   */
+  public int toToken(long id, byte[] dest, int off) {
+    final int level = getLevel(id);
+    final int mask = (1 << bitsPerLevel) - 1;
+    for (int i = off + level - 1; i >= off; i--) {
+      dest[i] = alphabet[(int) id & mask];
+      id >>>= bitsPerLevel;
+    }
+    return level;
+  }
+
+  public byte[] toTokenBytes(long id) {
+    byte[] bytes = new byte[getLevel(id)];
+    toToken(id, bytes, 0);
+    return bytes;
+  }
+
+  public String toTokenString(long id) {
+    final int level = getLevel(id);
+    final int mask = (1 << bitsPerLevel) - 1;
+    char[] chars = new char[level];
+    for (int i = level - 1; i >= 0; i--) {
+      chars[i] = (char) alphabet[(int) id & mask];
+      id >>>= bitsPerLevel;
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.base.prefix;
+
+import org.apache.lucene.spatial.base.shape.Shape;
+
+/**
+ * The shapes of a tree's cells down to some level, in an array indexed by {@link CellIds cell id}. Every query and
+ * indexed shape visits the cells of the upper levels, so with this they share their shapes instead of each cell
+ * walking its token and making a new Rectangle. A shape is stored the first time its cell computes it. The slots of
+ * a level's ids follow those of the level above (minus a gap, since ids have a sentinel bit), so the table's size is
+ * about twice the number of cells at its deepest level. Deeper cells are expected to compute their shapes
+ * incrementally from their parent's.
+ * <p/>
+ * Threadsafe, provided the shapes are immutable (final fields), since their publication through the array is racy.
+ */
+public final class CellShapeTable {
+
+  /** The default limit of the number of slots: 64K references. */
+  public static final int DEFAULT_MAX_SLOTS = 1 << 16;
+
+  private final int maxLevel;
+  private final Shape[] shapes;
+
+  /**
+   * @param maxLevel the deepest level to keep; it's lowered to fit within maxSlots
+   */
+  public CellShapeTable(CellIds cellIds, int maxLevel, int maxSlots) {
+    final int bitsPerLevel = cellIds.getBitsPerLevel();
+    int level = Math.min(maxLevel, cellIds.getMaxLevels());
+    while (level > 0 && (2L << (bitsPerLevel * level)) > maxSlots) {
+      level--;
+    }
+    this.maxLevel = level;
+    this.shapes = new Shape[(int) (2L << (bitsPerLevel * level))];
+  }
+
+  /** The deepest level of the cells with a slot; 0 if none fit (just the world cell). */
+  public int getMaxLevel() {
+    return maxLevel;
+  }
+
+  /** The shape of the cell, or null if it's not known yet or the cell is deeper than {@link #getMaxLevel()}. */
+  public Shape get(long id) {
+    return id < shapes.length ? shapes[(int) id] : null;
+  }
+
+  /** Keeps the shape of the cell if it's not deeper than {@link #getMaxLevel()}. */
+  public void put(long id, Shape shape) {
+    if (id < shapes.length)
+      shapes[(int) id] = shape;
+  }
+
+  @Override
+  public String toString() {
+    return "CellShapeTable(maxLevel:" + maxLevel + ",slots:" + shapes.length + ")";
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.base.prefix;
+
+import org.apache.lucene.spatial.base.shape.Shape;
+import org.apache.lucene.spatial.base.util.LruCache;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cache of the cells covering query shapes that repeat, such as the polygons of states and countries. Attach it
+ * with {@link SpatialPrefixTree#setCoveringCache(CoveringCache)} and
+ * {@link SpatialPrefixTree#getQueryNodes(Shape, int, boolean, int, java.util.concurrent.ExecutorService, int)} will
+ * consult it for any shape but a point. Shapes being indexed bypass it, since they rarely repeat and would evict the
+ * query shapes' coverings. Entries are keyed by the tree, the shape's equals/hashCode, and the other arguments, so
+ * one cache may be shared by several trees.
+ * <p/>
+ * A covering is stored compactly as the concatenation of its tokens (each with its leaf byte, if a leaf), and every
+ * hit makes new {@link Node}s from it since Nodes are mutable. Their shapes are computed lazily, so a hit skips
+ * nearly all of the geometry work. The least recently used entries are evicted once the estimated size of all
+ * coverings exceeds a byte budget (see {@link LruCache}). Hit, miss, and eviction counts are kept for sizing the
+ * budget.
+ * <p/>
+ * Threadsafe.
+ */
+public class CoveringCache {
+
+  private final LruCache<Key, Covering> cache;
+
+  /** @param maxBytes the approximate memory budget for all cached coverings */
+  public CoveringCache(long maxBytes) {
+    this.cache = new LruCache<Key, Covering>(maxBytes);
+  }
+
+  /** Returns new cells of the cached covering, or null if there isn't one. */
+  List<Node> get(SpatialPrefixTree tree, Shape shape, int detailLevel, boolean inclParents, int maxCells) {
+    Covering covering = cache.get(new Key(tree, shape, detailLevel, inclParents, maxCells));
+    return covering == null ? null : covering.toNodes(tree);
+  }
+
+  void put(SpatialPrefixTree tree, Shape shape, int detailLevel, boolean inclParents, int maxCells, List<Node> cells) {
+    Covering covering = new Covering(cells);
+    cache.put(new Key(tree, shape, detailLevel, inclParents, maxCells), covering, Key.BYTES + covering.ramBytesUsed());
+  }
+
+  public void clear() {
+    cache.clear();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  /** The estimated memory used by the cached coverings, in bytes. */
+  public long getRamBytesUsed() {
+    return cache.getRamBytesUsed();
+  }
+
+  public long getMaxBytes() {
+    return cache.getMaxBytes();
+  }
+
+  public long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  public long getMissCount() {
+    return cache.getMissCount();
+  }
+
+  /** The number of entries removed to stay within the byte budget. */
+  public long getEvictionCount() {
+    return cache.getEvictionCount();
+  }
+
+  @Override
+  public String toString() {
+    return "CoveringCache(" + cache + ")";
+  }
+
+  private static class Key {
+    //the shape is usually held elsewhere too, so it isn't counted
+    static final long BYTES = RamUsageEstimator.shallowSizeOfInstance(Key.class);
+
+    final SpatialPrefixTree tree;
+    final Shape shape;
+    final int detailLevel;
+    final boolean inclParents;
+    final int maxCells;
+
+    Key(SpatialPrefixTree tree, Shape shape, int detailLevel, boolean inclParents, int maxCells) {
+      this.tree = tree;
+      this.shape = shape;
+      this.detailLevel = detailLevel;
+      this.inclParents = inclParents;
+      this.maxCells = maxCells;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key that = (Key) o;
+      return tree == that.tree && detailLevel == that.detailLevel && inclParents == that.inclParents
+          && maxCells == that.maxCells && shape.equals(that.shape);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = System.identityHashCode(tree);
+      result = 31 * result + shape.hashCode();
+      result = 31 * result + detailLevel;
+      result = 31 * result + (inclParents ? 1 : 0);
+      result = 31 * result + maxCells;
+      return result;
+    }
+  }
+
+  /** The tokens of a covering's cells, concatenated. */
+  private static class Covering {
+    static final long SHALLOW_BYTES = RamUsageEstimator.shallowSizeOfInstance(Covering.class);
+
+    final byte[] tokens;//each followed by the leaf byte if a leaf; tokens are ASCII
+    final int[] offsets;//of each token, plus the end
+
+    Covering(List<Node> cells) {
+      offsets = new int[cells.size() + 1];
+      int len = 0;
+      for (Node cell : cells) {
+        len += cell.getTokenLength() + (cell.isLeaf() ? 1 : 0);
+      }
+      tokens = new byte[len];
+      int off = 0;
+      for (int i = 0; i < cells.size(); i++) {
+        Node cell = cells.get(i);
+        offsets[i] = off;
+        final int tokenLen = cell.getTokenLength();
+        for (int j = 0; j < tokenLen; j++) {
+          tokens[off++] = (byte) cell.getTokenByte(j);
+        }
+        if (cell.isLeaf())
+          tokens[off++] = Node.LEAF_BYTE;
+      }
+      offsets[cells.size()] = off;
+    }
+
+    /** Note: the cells share the token array, which is never modified. */
+    List<Node> toNodes(SpatialPrefixTree tree) {
+      final int size = offsets.length - 1;
+      List<Node> cells = new ArrayList<Node>(size);
+      for (int i = 0; i < size; i++) {
+        cells.add(tree.getNode(tokens, offsets[i], offsets[i + 1] - offsets[i]));
+      }
+      return cells;
+    }
+
+    long ramBytesUsed() {
+      return SHALLOW_BYTES + RamUsageEstimator.sizeOf(tokens) + RamUsageEstimator.sizeOf(offsets);
+    }
+  }
+}
@@ -27,13 +27,15 @@ import java.util.Collections;
 import java.util.List;
 
 /**
- * Represents a grid cell. These are not necessarily threadsafe, although new Cell("") (world cell) must be.
+ * Represents a grid cell. These are not necessarily threadsafe, except for shared cells: the world cell and
+ * {@link SpatialPrefixTree#getTopCells()}. A shared cell can't be modified, so to relate its sub-cells to a shape
+ * without modifying them either, use {@link #addSubCells(Shape, List, List)}.
  */
 public abstract class Node implements Comparable<Node> {
   public static final byte LEAF_BYTE = '+';//NOTE: must sort before letters & numbers
 
   /*
-  Holds a byte[] and/or String representation of the cell. Both are lazy constructed from the other.
+  Holds a byte[] and/or String representation of the cell. Both are lazy constructed from the other, or from the id.
   Neither contains the trailing leaf byte.
    */
   private byte[] bytes;
@@ -42,9 +44,13 @@ public abstract class Node implements Comparable<Node> {
 
   private String token;//this is the only part of equality
 
+  private long id;//see CellIds; 0 until known
+
   protected SpatialRelation shapeRel;//set in getSubCells(filter), and via setLeaf().
   private SpatialPrefixTree spatialPrefixTree;
 
+  private boolean shared;//see share()
+
   protected Node(SpatialPrefixTree spatialPrefixTree, String token) {
     this.spatialPrefixTree = spatialPrefixTree;
     this.token = token;
@@ -57,6 +63,13 @@ public abstract class Node implements Comparable<Node> {
       getShape();//ensure any lazy instantiation completes to make this threadsafe
   }
 
+  /** For trees with {@link SpatialPrefixTree#getCellIds()}; the token is made from the id when needed. */
+  protected Node(SpatialPrefixTree spatialPrefixTree, long id) {
+    assert id > 1 && spatialPrefixTree.getCellIds() != null;
+    this.spatialPrefixTree = spatialPrefixTree;
+    this.id = id;
+  }
+
   protected Node(SpatialPrefixTree spatialPrefixTree, byte[] bytes, int off, int len) {
     this.spatialPrefixTree = spatialPrefixTree;
     this.bytes = bytes;
@@ -67,7 +80,9 @@ public abstract class Node implements Comparable<Node> {
 
   public void reset(byte[] bytes, int off, int len) {
     assert getLevel() != 0;
+    checkNotShared();
     token = null;
+    id = 0;
     shapeRel = null;
     this.bytes = bytes;
     this.b_off = off;
@@ -94,15 +109,43 @@ public abstract class Node implements Comparable<Node> {
 
   public void setLeaf() {
     assert getLevel() != 0;
+    checkNotShared();
     shapeRel = SpatialRelation.WITHIN;
   }
 
+  /**
+   * Computes everything about this cell that is otherwise computed lazily, and then disallows modifying it, so that
+   * it can be used by any thread once safely published. Subclasses that compute other state lazily must override
+   * this to compute it too; by default, the token, its bytes, the id, and the shape are computed.
+   */
+  protected void share() {
+    getTokenString();
+    getTokenBytes();
+    if (hasId() && getLevel() > 0)
+      getId();
+    getShape();
+    shared = true;
+  }
+
+  /** Whether this cell is shared; see {@link SpatialPrefixTree#getTopCells()}. */
+  public boolean isShared() {
+    return shared;
+  }
+
+  private void checkNotShared() {
+    if (shared)
+      throw new IllegalStateException("Shared cells can't be modified: " + this);
+  }
+
   /**
    * Note: doesn't contain a trailing leaf byte.
    */
   public String getTokenString() {
     if (token == null) {
-      token = new String(bytes, b_off, b_len, SpatialPrefixTree.UTF8);
+      if (bytes != null)
+        token = new String(bytes, b_off, b_len, SpatialPrefixTree.UTF8);
+      else
+        token = spatialPrefixTree.getCellIds().toTokenString(id);
     }
     return token;
   }
@@ -116,15 +159,104 @@ public abstract class Node implements Comparable<Node> {
         throw new IllegalStateException("Not supported if byte[] needs to be recreated.");
       }
     } else {
-      bytes = token.getBytes(SpatialPrefixTree.UTF8);
+      bytes = token != null ? token.getBytes(SpatialPrefixTree.UTF8) : spatialPrefixTree.getCellIds().toTokenBytes(id);
       b_off = 0;
       b_len = bytes.length;
     }
     return bytes;
   }
 
+  /**
+   * The cell's level. By default it's the length of its token; trees that encode more than one level per token
+   * character override this along with {@link #isPrefixOf(byte[], int, int)}.
+   */
   public int getLevel() {
-    return token != null ? token.length() : b_len;
+    if (token != null)
+      return token.length();
+    if (bytes != null)
+      return b_len;
+    return spatialPrefixTree.getCellIds().getLevel(id);
+  }
+
+  /** The length of the token (without a leaf byte), without creating it. */
+  public int getTokenLength() {
+    if (token != null)
+      return token.length();
+    if (bytes != null)
+      return b_len;
+    return spatialPrefixTree.getCellIds().getLevel(id);//a char per level
+  }
+
+  /**
+   * Writes the token (without a leaf byte) into dest, which must have room for {@link #getTokenLength()} bytes,
+   * without creating it as a String or byte[].
+   *
+   * @return the token length
+   */
+  public int copyTokenBytes(byte[] dest, int off) {
+    if (bytes != null) {
+      System.arraycopy(bytes, b_off, dest, off, b_len);
+      return b_len;
+    }
+    if (token != null) {
+      final int len = token.length();
+      for (int i = 0; i < len; i++) {
+        dest[off + i] = (byte) token.charAt(i);//ASCII
+      }
+      return len;
+    }
+    return spatialPrefixTree.getCellIds().toToken(id, dest, off);
+  }
+
+  /** The token character at the given index, without creating the token if not needed. Tokens are ASCII. */
+  protected int getTokenByte(int idx) {
+    if (token != null)
+      return token.charAt(idx);
+    if (bytes != null)
+      return bytes[b_off + idx];
+    return getTokenString().charAt(idx);
+  }
+
+  /**
+   * Whether the given term is of this cell or one beneath it, with or without a trailing leaf byte. By default, that
+   * is whether this cell's token is a prefix of it.
+   */
+  public boolean isPrefixOf(byte[] termBytes, int off, int len) {
+    final int tokenLen = getTokenLength();
+    if (len < tokenLen)
+      return false;
+    for (int i = 0; i < tokenLen; i++) {
+      if (termBytes[off + i] != getTokenByte(i))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Whether {@link #getId()} is supported: the tree has {@link SpatialPrefixTree#getCellIds()} and this cell isn't
+   * deeper than its max levels.
+   */
+  public boolean hasId() {
+    if (id != 0)
+      return true;
+    CellIds cellIds = spatialPrefixTree.getCellIds();
+    return cellIds != null && getLevel() <= cellIds.getMaxLevels();
+  }
+
+  /** The id if this cell was made from one or {@link #getId()} was called, otherwise 0. Doesn't compute it. */
+  protected long getIdIfKnown() {
+    return id;
+  }
+
+  /** The primitive id of this cell; see {@link CellIds}. Precondition: {@link #hasId()}. */
+  public long getId() {
+    if (id == 0) {
+      CellIds cellIds = spatialPrefixTree.getCellIds();
+      if (cellIds == null)
+        throw new UnsupportedOperationException(spatialPrefixTree + " doesn't have cell ids");
+      id = token != null ? cellIds.fromToken(token) : cellIds.fromToken(bytes, b_off, b_len);
+    }
+    return id;
   }
 
   //TODO add getParent() and update some algorithms to use this?
@@ -143,21 +275,57 @@ public abstract class Node implements Comparable<Node> {
     if (shapeFilter instanceof Point) {
       return Collections.singleton(getSubCell((Point) shapeFilter));
     }
-    Collection<Node> cells = getSubCells();
-
     if (shapeFilter == null) {
-      return cells;
+      return getSubCells();
     }
-    List<Node> copy = new ArrayList<Node>(cells.size());//copy since cells contractually isn't modifiable
-    for (Node cell : cells) {
-      SpatialRelation rel = cell.getShape().relate(shapeFilter, spatialPrefixTree.ctx);
-      if (rel == SpatialRelation.DISJOINT)
-        continue;
-      cell.shapeRel = rel;
-      copy.add(cell);
+    List<Node> copy = new ArrayList<Node>(getSubCellsSize());//copy since cells contractually isn't modifiable
+    addSubCells(shapeFilter, copy);
+    return copy;
+  }
+
+  /**
+   * Like {@link #getSubCells(Shape)} but adds the cells, in sorted order, to the given collection instead of
+   * returning a new one, so that a caller visiting many cells can reuse it.
+   */
+  public void addSubCells(Shape shapeFilter, Collection<Node> result) {
+    if (shapeFilter instanceof Point) {
+      result.add(getSubCell((Point) shapeFilter));
+      return;
+    }
+    for (Node cell : getSubCells()) {
+      if (shapeFilter != null) {
+        SpatialRelation rel = cell.getShape().relate(shapeFilter, spatialPrefixTree.ctx);
+        if (rel == SpatialRelation.DISJOINT)
+          continue;
+        cell.shapeRel = rel;
+      }
+      result.add(cell);
+    }
+  }
+
+  /**
+   * Like {@link #addSubCells(Shape, Collection)} but the sub-cells aren't modified: the relation of each to the shape
+   * (its shape's relation to it) is added to relations instead, at the same index, so they may be shared. The sub-cells
+   * of the world cell are {@link SpatialPrefixTree#getTopCells()}, with shapes that aren't computed again. If the
+   * shape is a Point, its sub-cell is said to contain it.
+   */
+  public void addSubCells(Shape shapeFilter, List<Node> cells, List<SpatialRelation> relations) {
+    if (shapeFilter instanceof Point) {
+      cells.add(getSubCell((Point) shapeFilter));
+      relations.add(SpatialRelation.CONTAINS);
+      return;
+    }
+    final Collection<Node> subCells = getLevel() == 0 ? spatialPrefixTree.getTopCells() : getSubCells();
+    for (Node cell : subCells) {
+      SpatialRelation rel = SpatialRelation.INTERSECTS;
+      if (shapeFilter != null) {
+        rel = cell.getShape().relate(shapeFilter, spatialPrefixTree.ctx);
+        if (rel == SpatialRelation.DISJOINT)
+          continue;
+      }
+      cells.add(cell);
+      relations.add(rel);
     }
-    cells = copy;
-    return cells;
   }
 
   /**
@@ -20,12 +20,21 @@ package org.apache.lucene.spatial.base.prefix;
 import org.apache.lucene.spatial.base.context.SpatialContext;
 import org.apache.lucene.spatial.base.shape.Point;
 import org.apache.lucene.spatial.base.shape.Shape;
+import org.apache.lucene.util.ThreadInterruptedException;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A Spatial Prefix Tree, or Trie, which decomposes shapes into prefixed strings at variable lengths corresponding to
@@ -41,6 +50,8 @@ public abstract class SpatialPrefixTree {
 
   protected final SpatialContext ctx;
 
+  private volatile CoveringCache coveringCache;
+
   public SpatialPrefixTree(SpatialContext ctx, int maxLevels) {
     assert maxLevels > 0;
     this.ctx = ctx;
@@ -55,6 +66,19 @@ public abstract class SpatialPrefixTree {
     return maxLevels;
   }
 
+  /**
+   * Sets a cache for the coverings of query shapes returned by
+   * {@link #getQueryNodes(Shape, int, boolean, int, ExecutorService, int)}, or null (the default) for none. The
+   * getNodes() methods, which index shapes, don't use it. Points aren't cached; they're cheap.
+   */
+  public void setCoveringCache(CoveringCache coveringCache) {
+    this.coveringCache = coveringCache;
+  }
+
+  public CoveringCache getCoveringCache() {
+    return coveringCache;
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName() + "(maxLevels:" + maxLevels + ",ctx:" + ctx + ")";
@@ -94,19 +118,49 @@ public abstract class SpatialPrefixTree {
 
   //TODO double getDistanceForLevel(int level)
 
-  private transient Node worldNode;//cached
+  /**
+   * The primitive cell id encoding of this tree, if its tokens can be encoded that way, or null. The nodes of such a
+   * tree support {@link Node#getId()}.
+   */
+  public CellIds getCellIds() {
+    return null;
+  }
+
+  private volatile Node worldNode;//cached
+  private volatile List<Node> topCells;//cached
 
   /**
    * Returns the level 0 cell which encompasses all spatial data. Equivalent to {@link #getNode(String)} with "".
    * This cell is threadsafe, just like a spatial prefix grid is, although cells aren't
-   * generally threadsafe.
+   * generally threadsafe. It's shared, so it can't be modified; see {@link Node#isShared()}.
    * TODO rename to getTopCell or is this fine?
    */
   public Node getWorldNode() {
-    if (worldNode == null) {
-      worldNode = getNode("");
+    Node node = worldNode;
+    if (node == null) {
+      node = getNode("");
+      node.share();
+      worldNode = node;//a race just makes an equal one
     }
-    return worldNode;
+    return node;
+  }
+
+  /**
+   * The level 1 cells, i.e. the sub-cells of the world cell, sorted and unmodifiable. They are computed once and
+   * shared, which makes them threadsafe but unmodifiable; see {@link Node#isShared()}. Their relation to a shape is
+   * found with {@link Node#addSubCells(Shape, List, List)} on the world cell.
+   */
+  public List<Node> getTopCells() {
+    List<Node> cells = topCells;
+    if (cells == null) {
+      cells = new ArrayList<Node>(getWorldNode().getSubCells());
+      for (Node cell : cells) {
+        cell.share();
+      }
+      cells = Collections.unmodifiableList(cells);
+      topCells = cells;//a race just makes equal ones
+    }
+    return cells;
   }
 
   /**
@@ -138,7 +192,7 @@ public abstract class SpatialPrefixTree {
    * recursively calls {@link Node#getSubCell(org.apache.lucene.spatial.base.shape.Point)}. Cell subclasses
    * ideally implement that method with a quick implementation, otherwise, subclasses should
    * override this method to invoke {@link #getNodesAltPoint(org.apache.lucene.spatial.base.shape.Point, int, boolean)}.
-   * TODO consider another approach returning an iterator -- won't build up all cells in memory.
+   * For large shapes at fine detail, consider {@link #getNodesIterator(Shape, int, boolean)} instead.
    */
   public List<Node> getNodes(Shape shape, int detailLevel, boolean inclParents) {
     if (detailLevel > maxLevels) {
@@ -152,44 +206,382 @@ public abstract class SpatialPrefixTree {
       cells = new ArrayList<Node>(initialCapacity);
       recursiveGetNodes(getWorldNode(), (Point) shape, detailLevel, true, cells);
       assert cells.size() == initialCapacity;
+      if (inclParents) {
+        Node c = cells.remove(0);//remove getWorldNode()
+        assert c.getLevel() == 0;
+      }
     } else {
       cells = new ArrayList<Node>(inclParents ? 1024 : 512);
-      recursiveGetNodes(getWorldNode(), shape, detailLevel, inclParents, cells);
-    }
-    if (inclParents) {
-      Node c = cells.remove(0);//remove getWorldNode()
-      assert c.getLevel() == 0;
+      for (Iterator<Node> iter = new CoveringIterator(shape, detailLevel, inclParents); iter.hasNext(); ) {
+        cells.add(iter.next());
+      }
     }
     return cells;
   }
 
-  private void recursiveGetNodes(Node node, Shape shape, int detailLevel, boolean inclParents,
-                                 Collection<Node> result) {
-    if (node.isLeaf()) {//cell is within shape
-      result.add(node);
-      return;
+  /**
+   * Like {@link #getNodes(Shape, int, boolean)} but within a budget of about maxCells cells other than parents (i.e.
+   * the terms a query needs), much like a region coverer. Cells are divided coarsest first (level by level), and a
+   * cell whose division would go over budget is kept as a leaf instead, so the covering is coarsened where it's least
+   * valuable: its finest cells. Within a level, the cells whose division resolves the most of their area are divided
+   * first: those with the most sub-cells that are disjoint from or within the shape, rather than on its edge. The
+   * world cell is always divided, so the budget is exceeded if the level 1 cells alone are more. Given a budget that
+   * isn't reached, the result is the same as without one.
+   *
+   * @param maxCells if <= 0, there is no budget
+   */
+  public List<Node> getNodes(Shape shape, int detailLevel, boolean inclParents, int maxCells) {
+    if (maxCells <= 0 || shape instanceof Point)
+      return getNodes(shape, detailLevel, inclParents);
+    if (detailLevel > maxLevels) {
+      throw new IllegalArgumentException("detailLevel > maxLevels");
     }
-    final Collection<Node> subCells = node.getSubCells(shape);
-    if (node.getLevel() == detailLevel - 1) {
-      if (subCells.size() < node.getSubCellsSize()) {
+    List<Node> cells = new ArrayList<Node>();
+    List<Node> levelCells = new ArrayList<Node>(getWorldNode().getSubCells(shape));
+    int numCells = levelCells.size();//returned or to divide, other than parents
+    if (detailLevel == 1) {
+      for (Node cell : levelCells) {
+        cell.setLeaf();
+      }
+    }
+    List<Division> divisions = new ArrayList<Division>();
+    while (!levelCells.isEmpty()) {
+      for (Node cell : levelCells) {
+        if (cell.isLeaf()) {//within the shape, or at the detail level
+          cells.add(cell);
+          continue;
+        }
+        Collection<Node> subCells = cell.getSubCells(shape);
+        if (cell.getLevel() == detailLevel - 1 && subCells.size() == cell.getSubCellsSize()) {
+          //all sub-cells at the detail level intersect (as in CoveringIterator)
+          cell.setLeaf();
+          cells.add(cell);
+          continue;
+        }
+        divisions.add(new Division(cell, subCells));
+      }
+      Collections.sort(divisions);//stable, so ties stay in token order
+      levelCells = new ArrayList<Node>();
+      for (Division division : divisions) {
+        final Node cell = division.cell;
+        if (numCells - 1 + division.subCells.size() > maxCells) {//over budget
+          cell.setLeaf();
+          cells.add(cell);
+          continue;
+        }
+        numCells += division.subCells.size() - 1;
         if (inclParents)
-          result.add(node);
+          cells.add(cell);
+        for (Node subCell : division.subCells) {
+          if (subCell.getLevel() == detailLevel)
+            subCell.setLeaf();
+          levelCells.add(subCell);
+        }
+      }
+      divisions.clear();
+    }
+    Collections.sort(cells);//depth first order
+    return cells;
+  }
+
+  /** A cell to divide, for {@link #getNodes(Shape, int, boolean, int)}; ordered by the area its division resolves. */
+  private static class Division implements Comparable<Division> {
+    final Node cell;
+    final Collection<Node> subCells;//intersecting the shape
+    final int numResolved;//sub-cells disjoint from or within the shape
+
+    Division(Node cell, Collection<Node> subCells) {
+      this.cell = cell;
+      this.subCells = subCells;
+      int numEdge = 0;
+      for (Node subCell : subCells) {
+        if (!subCell.isLeaf())
+          numEdge++;
+      }
+      this.numResolved = cell.getSubCellsSize() - numEdge;
+    }
+
+    @Override
+    public int compareTo(Division o) {
+      //the larger fraction of resolved sub-cells first
+      long diff = (long) o.numResolved * cell.getSubCellsSize() - (long) numResolved * o.cell.getSubCellsSize();
+      return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+    }
+  }
+
+  /** The fewest subtrees to split a covering into for {@link #getNodes(Shape, int, boolean, ExecutorService, int)}. */
+  private static final int PARALLEL_MIN_SUBTREES = 32;
+
+  /**
+   * Like {@link #getNodes(Shape, int, boolean)} (the same cells in the same order) but the coverings beneath the cells
+   * at a split level are found by up to parallelism workers, one of which is the calling thread. The split level is
+   * the first with at least {@link #PARALLEL_MIN_SUBTREES} cells in the world, so that a few subtrees with most of the
+   * work can be balanced. Each worker claims the next unclaimed subtree until none remain, and the subtrees' cells
+   * are then concatenated in order. It's worth it for large shapes at fine detail, such as country borders; for
+   * coverings of a few hundred cells, the overhead dominates. The shape must be threadsafe for relate().
+   *
+   * @param executor    null to not use any other threads
+   * @param parallelism the maximum number of threads used, including the calling thread
+   * @throws ThreadInterruptedException if interrupted while waiting for the other workers, which are then cancelled
+   */
+  public List<Node> getNodes(Shape shape, int detailLevel, boolean inclParents, ExecutorService executor,
+                             int parallelism) {
+    if (executor == null || parallelism < 2 || shape instanceof Point)
+      return getNodes(shape, detailLevel, inclParents);
+    if (detailLevel > maxLevels) {
+      throw new IllegalArgumentException("detailLevel > maxLevels");
+    }
+    final int splitLevel = getParallelSplitLevel();
+    if (splitLevel >= detailLevel - 1)
+      return getNodes(shape, detailLevel, inclParents);//too shallow to split
+
+    //the cells down to the split level, in order, with a null where each subtree's cells go
+    List<Node> topCells = new ArrayList<Node>();
+    List<Node> subtrees = new ArrayList<Node>();
+    splitCovering(getWorldNode(), shape, splitLevel, inclParents, topCells, subtrees);
+    AtomicReferenceArray<List<Node>> subtreeCells = findInParallel(subtrees, shape, detailLevel, inclParents,
+        executor, parallelism);
+
+    int size = topCells.size();
+    for (int i = 0; i < subtreeCells.length(); i++) {
+      size += subtreeCells.get(i).size();
+    }
+    List<Node> cells = new ArrayList<Node>(size);
+    int subtreeIdx = 0;
+    for (Node cell : topCells) {
+      if (cell != null)
+        cells.add(cell);
+      else
+        cells.addAll(subtreeCells.get(subtreeIdx++));
+    }
+    return cells;
+  }
+
+  /**
+   * The cells to query a shape with: those of {@link #getNodes(Shape, int, boolean, int)} if maxCells > 0, else those
+   * of {@link #getNodes(Shape, int, boolean, ExecutorService, int)}. Unlike those methods, this one consults the
+   * {@link #setCoveringCache(CoveringCache) covering cache}, if any, since query shapes often repeat.
+   */
+  public List<Node> getQueryNodes(Shape shape, int detailLevel, boolean inclParents, int maxCells,
+                                  ExecutorService executor, int parallelism) {
+    final CoveringCache cache = shape instanceof Point ? null : coveringCache;
+    if (maxCells < 0)
+      maxCells = 0;//no budget; so that it's one cache key
+    if (cache != null) {
+      List<Node> cells = cache.get(this, shape, detailLevel, inclParents, maxCells);
+      if (cells != null)
+        return cells;
+    }
+    List<Node> cells = maxCells > 0 ? getNodes(shape, detailLevel, inclParents, maxCells)
+        : getNodes(shape, detailLevel, inclParents, executor, parallelism);
+    if (cache != null)
+      cache.put(this, shape, detailLevel, inclParents, maxCells, cells);
+    return cells;
+  }
+
+  private int getParallelSplitLevel() {
+    final int subCellsSize = getWorldNode().getSubCellsSize();
+    int level = 1;
+    for (long numCells = subCellsSize; numCells < PARALLEL_MIN_SUBTREES; numCells *= subCellsSize) {
+      level++;
+    }
+    return level;
+  }
+
+  /**
+   * Visits the cells down to splitLevel like {@link CoveringIterator} does. splitLevel is above the level of the detail
+   * level's parents.
+   */
+  private void splitCovering(Node cell, Shape shape, int splitLevel, boolean inclParents, List<Node> topCells,
+                             List<Node> subtrees) {
+    for (Node subCell : cell.getSubCells(shape)) {
+      if (subCell.isLeaf()) {//within shape
+        topCells.add(subCell);
+        continue;
+      }
+      if (inclParents)
+        topCells.add(subCell);
+      if (subCell.getLevel() == splitLevel) {
+        topCells.add(null);
+        subtrees.add(subCell);
+      } else {
+        splitCovering(subCell, shape, splitLevel, inclParents, topCells, subtrees);
+      }
+    }
+  }
+
+  private AtomicReferenceArray<List<Node>> findInParallel(List<Node> subtrees, Shape shape, int detailLevel,
+                                                          boolean inclParents, ExecutorService executor,
+                                                          int parallelism) {
+    final AtomicReferenceArray<List<Node>> subtreeCells = new AtomicReferenceArray<List<Node>>(subtrees.size());
+    final AtomicInteger nextSubtreeIdx = new AtomicInteger();
+    SubtreeWorker worker = new SubtreeWorker(subtrees, shape, detailLevel, inclParents, nextSubtreeIdx, subtreeCells);
+    final int numWorkers = Math.min(parallelism, subtrees.size());
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(Math.max(numWorkers - 1, 0));
+    boolean success = false;
+    try {
+      for (int i = 1; i < numWorkers; i++) {
+        futures.add(executor.submit(worker));
+      }
+      worker.call();
+      for (Future<Void> future : futures) {
+        getResult(future);
+      }
+      success = true;
+      return subtreeCells;
+    } finally {
+      if (!success) {//failed or interrupted; cancel the workers before rethrowing
+        nextSubtreeIdx.set(subtrees.size());//the other workers stop at their next subtree
+        for (Future<Void> future : futures) {
+          future.cancel(false);
+        }
+      }
+    }
+  }
+
+  /** Finds the covering beneath the next unclaimed subtree until none remain. */
+  private class SubtreeWorker implements Callable<Void> {
+    private final List<Node> subtrees;
+    private final Shape shape;
+    private final int detailLevel;
+    private final boolean inclParents;
+    private final AtomicInteger nextSubtreeIdx;
+    private final AtomicReferenceArray<List<Node>> subtreeCells;
+
+    SubtreeWorker(List<Node> subtrees, Shape shape, int detailLevel, boolean inclParents,
+                  AtomicInteger nextSubtreeIdx, AtomicReferenceArray<List<Node>> subtreeCells) {
+      this.subtrees = subtrees;
+      this.shape = shape;
+      this.detailLevel = detailLevel;
+      this.inclParents = inclParents;
+      this.nextSubtreeIdx = nextSubtreeIdx;
+      this.subtreeCells = subtreeCells;
+    }
+
+    @Override
+    public Void call() {
+      int idx;
+      while ((idx = nextSubtreeIdx.getAndIncrement()) < subtrees.size()) {
+        List<Node> cells = new ArrayList<Node>();
+        for (Iterator<Node> iter = new CoveringIterator(subtrees.get(idx), shape, detailLevel, inclParents);
+             iter.hasNext(); ) {
+          cells.add(iter.next());
+        }
+        subtreeCells.set(idx, cells);
+      }
+      return null;
+    }
+  }
+
+  private static <T> T getResult(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new ThreadInterruptedException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Like {@link #getNodes(Shape, int, boolean)} (the same cells in the same order) but the cells are found as the
+   * iterator is advanced, depth first. Only the sub-cells of the cells on the current path are held, so memory stays
+   * bounded no matter how many cells cover the shape.
+   */
+  public Iterator<Node> getNodesIterator(Shape shape, int detailLevel, boolean inclParents) {
+    if (shape instanceof Point)
+      return getNodes(shape, detailLevel, inclParents).iterator();//few cells
+    if (detailLevel > maxLevels) {
+      throw new IllegalArgumentException("detailLevel > maxLevels");
+    }
+    return new CoveringIterator(shape, detailLevel, inclParents);
+  }
+
+  /** See {@link #getNodesIterator(Shape, int, boolean)}. */
+  private class CoveringIterator implements Iterator<Node> {
+    private final Shape shape;
+    private final int detailLevel;
+    private final boolean inclParents;
+
+    //the sub-cells yet to visit of each cell on the path from the world cell to the last one returned
+    private final List<Iterator<Node>> stack = new ArrayList<Iterator<Node>>();
+    private Node next;//null when not yet found or at the end
+
+    CoveringIterator(Shape shape, int detailLevel, boolean inclParents) {
+      this(getWorldNode(), shape, detailLevel, inclParents);
+    }
+
+    /**
+     * The cells beneath the given one, which is the world cell or is above the level of the detail level's parents and
+     * not a leaf. It isn't returned itself.
+     */
+    CoveringIterator(Node cell, Shape shape, int detailLevel, boolean inclParents) {
+      this.shape = shape;
+      this.detailLevel = detailLevel;
+      this.inclParents = inclParents;
+      assert cell.getLevel() == 0 || cell.getLevel() < detailLevel - 1;
+      if (cell.getLevel() == detailLevel - 1)
+        next = visitDetailParent(cell);
+      else
+        stack.add(cell.getSubCells(shape).iterator());
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && !stack.isEmpty()) {
+        Iterator<Node> top = stack.get(stack.size() - 1);
+        if (!top.hasNext()) {
+          stack.remove(stack.size() - 1);
+          continue;
+        }
+        next = visit(top.next());
+      }
+      return next != null;
+    }
+
+    /** Returns the cell to return for this one, if any, and pushes its sub-cells to visit. */
+    private Node visit(Node node) {
+      if (node.isLeaf())//cell is within shape
+        return node;
+      if (node.getLevel() == detailLevel - 1)
+        return visitDetailParent(node);
+      stack.add(node.getSubCells(shape).iterator());
+      return inclParents ? node : null;
+    }
+
+    private Node visitDetailParent(Node node) {
+      final Collection<Node> subCells = node.getSubCells(shape);
+      //the world cell can't be a leaf, nor returned
+      if (subCells.size() < node.getSubCellsSize() || node.getLevel() == 0) {
         for (Node subCell : subCells) {
           subCell.setLeaf();
         }
-        result.addAll(subCells);
+        stack.add(subCells.iterator());
+        return inclParents && node.getLevel() > 0 ? node : null;
       } else {//a bottom level (i.e. detail level) optimization where all boxes intersect, so use parent cell.
         node.setLeaf();
-        result.add(node);
-      }
-    } else {
-      if (inclParents) {
-        result.add(node);
-      }
-      for (Node subCell : subCells) {
-        recursiveGetNodes(subCell, shape, detailLevel, inclParents, result);//tail call
+        return node;
       }
     }
+
+    @Override
+    public Node next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      Node result = next;
+      next = null;
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
   }
 
   private void recursiveGetNodes(Node node, Point point, int detailLevel, boolean inclParents,
@@ -209,22 +601,18 @@ public abstract class SpatialPrefixTree {
   /**
    * Subclasses might override {@link #getNodes(org.apache.lucene.spatial.base.shape.Shape, int, boolean)}
    * and check if the argument is a shape and if so, delegate
-   * to this implementation, which calls {@link #getNode(org.apache.lucene.spatial.base.shape.Point, int)} and
-   * then calls {@link #getNode(String)} repeatedly if inclParents is true.
+   * to this implementation, which descends from the world cell with
+   * {@link Node#getSubCell(org.apache.lucene.spatial.base.shape.Point)}. Unlike the default point algorithm, none of
+   * the cells are marked as leaves.
    */
   protected final List<Node> getNodesAltPoint(Point p, int detailLevel, boolean inclParents) {
-    Node cell = getNode(p, detailLevel);
-    if (!inclParents) {
-      return Collections.singletonList(cell);
-    }
-
-    String endToken = cell.getTokenString();
-    assert endToken.length() == detailLevel;
-    List<Node> cells = new ArrayList<Node>(detailLevel);
-    for (int i = 1; i < detailLevel; i++) {
-      cells.add(getNode(endToken.substring(0, i)));
+    List<Node> cells = new ArrayList<Node>(inclParents ? detailLevel : 1);
+    Node cell = getWorldNode();
+    for (int level = 1; level <= detailLevel; level++) {
+      cell = cell.getSubCell(p);
+      if (inclParents || level == detailLevel)
+        cells.add(cell);
     }
-    cells.add(cell);
     return cells;
   }
 
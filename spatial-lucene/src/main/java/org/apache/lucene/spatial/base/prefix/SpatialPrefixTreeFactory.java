@@ -21,6 +21,8 @@ import org.apache.lucene.spatial.base.context.SpatialContext;
 import org.apache.lucene.spatial.base.distance.DistanceUnits;
 import org.apache.lucene.spatial.base.distance.DistanceUtils;
 import org.apache.lucene.spatial.base.prefix.geohash.GeohashPrefixTree;
+import org.apache.lucene.spatial.base.prefix.hilbert.HilbertPrefixTree;
+import org.apache.lucene.spatial.base.prefix.quad.PackedQuadPrefixTree;
 import org.apache.lucene.spatial.base.prefix.quad.QuadPrefixTree;
 
 import java.util.Map;
@@ -37,8 +39,9 @@ public abstract class SpatialPrefixTreeFactory {
   protected Integer maxLevels;
 
   /**
-   * The factory  is looked up via "prefixTree" in args, expecting "geohash" or "quad".
-   * If its neither of these, then "geohash" is chosen for a geo context, otherwise "quad" is chosen.
+   * The factory  is looked up via "prefixTree" in args, expecting "geohash", "quad", "packedQuad", or "hilbert",
+   * else a class name.
+   * If it's not specified, then "geohash" is chosen for a geo context, otherwise "quad" is chosen.
    */
   public static SpatialPrefixTree makeSPT(Map<String,String> args, ClassLoader classLoader, SpatialContext ctx) {
     SpatialPrefixTreeFactory instance;
@@ -49,6 +52,10 @@ public abstract class SpatialPrefixTreeFactory {
       instance = new GeohashPrefixTree.Factory();
     else if ("quad".equalsIgnoreCase(cname))
       instance = new QuadPrefixTree.Factory();
+    else if ("packedQuad".equalsIgnoreCase(cname))
+      instance = new PackedQuadPrefixTree.Factory();
+    else if ("hilbert".equalsIgnoreCase(cname))
+      instance = new HilbertPrefixTree.Factory();
     else {
       try {
         Class c = classLoader.loadClass(cname);
@@ -18,6 +18,8 @@
 package org.apache.lucene.spatial.base.prefix.geohash;
 
 import org.apache.lucene.spatial.base.context.SpatialContext;
+import org.apache.lucene.spatial.base.prefix.CellIds;
+import org.apache.lucene.spatial.base.prefix.CellShapeTable;
 import org.apache.lucene.spatial.base.prefix.Node;
 import org.apache.lucene.spatial.base.prefix.SpatialPrefixTree;
 import org.apache.lucene.spatial.base.prefix.SpatialPrefixTreeFactory;
@@ -49,6 +51,8 @@ public class GeohashPrefixTree extends SpatialPrefixTree {
     }
   }
 
+  private final CellShapeTable shapeTable;
+
   public GeohashPrefixTree(SpatialContext ctx, int maxLevels) {
     super(ctx, maxLevels);
     Rectangle bounds = ctx.getWorldBounds();
@@ -57,6 +61,7 @@ public class GeohashPrefixTree extends SpatialPrefixTree {
     int MAXP = getMaxLevelsPossible();
     if (maxLevels <= 0 || maxLevels > MAXP)
       throw new IllegalArgumentException("maxLen must be [1-"+MAXP+"] but got "+ maxLevels);
+    shapeTable = new CellShapeTable(GeohashUtils.CELL_IDS, maxLevels, CellShapeTable.DEFAULT_MAX_SLOTS);
   }
 
   /** Any more than this and there's no point (double lat & lon are the same). */
@@ -72,7 +77,15 @@ public class GeohashPrefixTree extends SpatialPrefixTree {
 
   @Override
   public Node getNode(Point p, int level) {
-    return new GhCell(GeohashUtils.encodeLatLon(p.getY(), p.getX(), level));//args are lat,lon (y,x)
+    //args are lat,lon (y,x)
+    if (level <= GeohashUtils.CELL_IDS.getMaxLevels())
+      return new GhCell(GeohashUtils.encodeCellId(p.getY(), p.getX(), level));
+    return new GhCell(GeohashUtils.encodeLatLon(p.getY(), p.getX(), level));
+  }
+
+  @Override
+  public CellIds getCellIds() {
+    return GeohashUtils.CELL_IDS;
   }
 
   @Override
@@ -100,18 +113,38 @@ public class GeohashPrefixTree extends SpatialPrefixTree {
       super(GeohashPrefixTree.this, bytes, off, len);
     }
 
+    GhCell(long id) {
+      super(GeohashPrefixTree.this, id);
+    }
+
     @Override
     public void reset(byte[] bytes, int off, int len) {
       super.reset(bytes, off, len);
+      parentBox = null;
+      box = null;
       shape = null;
     }
 
     @Override
     public Collection<Node> getSubCells() {
+      final CellIds cellIds = GeohashUtils.CELL_IDS;
+      final double[] box = getBox();
+      if (getLevel() < cellIds.getMaxLevels()) {
+        long id = getId();
+        List<Node> cells = new ArrayList<Node>(32);
+        for (int digit = 0; digit < 32; digit++) {
+          GhCell cell = new GhCell(cellIds.getChild(id, digit));
+          cell.parentBox = box;
+          cells.add(cell);
+        }
+        return cells;
+      }
       String[] hashes = GeohashUtils.getSubGeohashes(getGeohash());//sorted
       List<Node> cells = new ArrayList<Node>(hashes.length);
       for (String hash : hashes) {
-        cells.add(new GhCell(hash));
+        GhCell cell = new GhCell(hash);
+        cell.parentBox = box;
+        cells.add(cell);
       }
       return cells;
     }
@@ -121,24 +154,63 @@ public class GeohashPrefixTree extends SpatialPrefixTree {
       return 32;//8x4
     }
 
+    /** Chooses the sub-cell from this cell's bounds, encoding just the next geohash character. */
     @Override
     public Node getSubCell(Point p) {
-      return GeohashPrefixTree.this.getNode(p,getLevel()+1);//not performant!
+      final double[] childBox = getBox().clone();
+      final int level = getLevel();
+      final int digit = GeohashUtils.encodeChar(p.getY(), p.getX(), level, childBox);
+      final CellIds cellIds = GeohashUtils.CELL_IDS;
+      GhCell cell = level < cellIds.getMaxLevels() ? new GhCell(cellIds.getChild(getId(), digit))
+          : new GhCell(getGeohash() + GeohashUtils.getChar(digit));
+      cell.box = childBox;//same arithmetic as decoding it
+      return cell;
     }
 
+    private double[] parentBox;//if known, the box is decoded from it incrementally; shared, so never modified
+    private double[] box;//cache; minX, maxX, minY, maxY
     private Shape shape;//cache
 
+    private double[] getBox() {
+      if (box == null) {
+        final long id = getIdIfKnown();
+        if (parentBox != null) {
+          final int level = getLevel();
+          final int digit = id != 0 ? GeohashUtils.CELL_IDS.getDigit(id, level)
+              : GeohashUtils.getCharIdx(getGeohash().charAt(level - 1));
+          double[] childBox = parentBox.clone();
+          GeohashUtils.decodeChar(digit, level - 1, childBox);
+          box = childBox;
+          parentBox = null;
+        } else {
+          box = id != 0 ? GeohashUtils.decodeBox(id) : GeohashUtils.decodeBox(getGeohash());
+        }
+      }
+      return box;
+    }
+
     @Override
     public Shape getShape() {
       if (shape == null) {
-        shape = GeohashUtils.decodeBoundary(getGeohash(), ctx);
+        //the upper levels' shapes are shared
+        final long id = getLevel() <= shapeTable.getMaxLevel() ? getId() : 0;
+        if (id != 0)
+          shape = shapeTable.get(id);
+        if (shape == null) {
+          double[] box = getBox();
+          shape = ctx.makeRect(box[0], box[1], box[2], box[3]);
+          if (id != 0)
+            shapeTable.put(id, shape);
+        }
       }
       return shape;
     }
 
     @Override
     public Point getCenter() {
-      return GeohashUtils.decode(getGeohash(), ctx);
+      //same arithmetic as GeohashUtils.decode()
+      double[] box = getBox();
+      return ctx.makePoint((box[0] + box[1]) / 2D, (box[2] + box[3]) / 2D);
     }
 
     private String getGeohash() {
@@ -18,6 +18,7 @@
 package org.apache.lucene.spatial.base.prefix.geohash;
 
 import org.apache.lucene.spatial.base.context.SpatialContext;
+import org.apache.lucene.spatial.base.prefix.CellIds;
 import org.apache.lucene.spatial.base.shape.Rectangle;
 import org.apache.lucene.spatial.base.shape.Point;
 
@@ -47,6 +48,16 @@ public class GeohashUtils {
     }
   }
 
+  /** Geohashes as primitive ids; see {@link CellIds}. Up to 12 characters. */
+  public static final CellIds CELL_IDS;
+  static {
+    byte[] alphabet = new byte[BASE_32.length];
+    for (int i = 0; i < BASE_32.length; i++) {
+      alphabet[i] = (byte) BASE_32[i];
+    }
+    CELL_IDS = new CellIds(5, alphabet);
+  }
+
   private GeohashUtils() {
   }
 
@@ -62,47 +73,93 @@ public class GeohashUtils {
   }
 
   public static String encodeLatLon(double latitude, double longitude, int precision) {
-    double[] latInterval = {-90.0, 90.0};
-    double[] lngInterval = {-180.0, 180.0};
+    byte[] bytes = new byte[precision];
+    encodeLatLon(latitude, longitude, precision, bytes, 0);
+    char[] chars = new char[precision];
+    for (int i = 0; i < precision; i++) {
+      chars[i] = (char) bytes[i];
+    }
+    return new String(chars);
+  }
 
-    final StringBuilder geohash = new StringBuilder(precision);
-    boolean isEven = true;
+  /**
+   * Writes the geohash of the given precision into dest (as ASCII) without creating any objects, other than for
+   * more than 12 characters.
+   *
+   * @return the precision
+   */
+  public static int encodeLatLon(double latitude, double longitude, int precision, byte[] dest, int off) {
+    final int fast = Math.min(precision, CELL_IDS.getMaxLevels());
+    long hash = encodeBits(latitude, longitude) >>> (5 * (CELL_IDS.getMaxLevels() - fast));
+    for (int i = off + fast - 1; i >= off; i--) {
+      dest[i] = (byte) BASE_32[(int) hash & 31];
+      hash >>>= 5;
+    }
+    if (precision > fast) {
+      //continue bit by bit from the box of the first 12 characters
+      double[] box = decodeBox(encodeCellId(latitude, longitude, fast));
+      for (int i = fast; i < precision; i++) {
+        dest[off + i] = (byte) BASE_32[encodeChar(latitude, longitude, i, box)];
+      }
+    }
+    return precision;
+  }
 
-    int bit = 0;
-    int ch = 0;
+  /** The geohash of the given precision (at most 12) as an id of {@link #CELL_IDS}. */
+  public static long encodeCellId(double latitude, double longitude, int precision) {
+    assert precision <= CELL_IDS.getMaxLevels();
+    return (1L << (5 * precision)) | (encodeBits(latitude, longitude) >>> (5 * (CELL_IDS.getMaxLevels() - precision)));
+  }
 
-    while (geohash.length() < precision) {
-      double mid = 0.0;
-      if (isEven) {
-        mid = (lngInterval[0] + lngInterval[1]) / 2D;
-        if (longitude > mid) {
-          ch |= BITS[bit];
-          lngInterval[0] = mid;
-        } else {
-          lngInterval[1] = mid;
-        }
-      } else {
-        mid = (latInterval[0] + latInterval[1]) / 2D;
-        if (latitude > mid) {
-          ch |= BITS[bit];
-          latInterval[0] = mid;
-        } else {
-          latInterval[1] = mid;
-        }
-      }
+  /**
+   * The 60 bits of a 12 character geohash. Each coordinate is quantized to 30 bits and the bits are interleaved,
+   * longitude first, with "magic number" bit spreading instead of bisecting the intervals bit by bit.
+   */
+  private static long encodeBits(double latitude, double longitude) {
+    return (spreadBits(quantize(longitude, -180, 360)) << 1) | spreadBits(quantize(latitude, -90, 180));
+  }
 
-      isEven = !isEven;
+  private static final long MAX_QUANTIZED = (1L << 30) - 1;
 
-      if (bit < 4) {
-        bit++;
-      } else {
-        geohash.append(BASE_32[ch]);
-        bit = 0;
-        ch = 0;
-      }
-    }
+  /**
+   * The index of the 2^30 intervals of the range starting at min that contains the value. Like the bisection in the
+   * geohash algorithm, a value on a boundary belongs to the lower interval.
+   */
+  private static long quantize(double value, double min, double range) {
+    final double width = range / (1L << 30);//exact, as are min + q * width below
+    long q = (long) Math.ceil((value - min) / width) - 1;
+    if (q < 0)
+      q = 0;
+    else if (q > MAX_QUANTIZED)
+      q = MAX_QUANTIZED;
+    //the division may have rounded across a boundary; fix it with exact comparisons
+    while (q > 0 && value <= min + q * width)
+      q--;
+    while (q < MAX_QUANTIZED && value > min + (q + 1) * width)
+      q++;
+    return q;
+  }
+
+  /** Spreads the low 32 bits of v to the even bits of a long. */
+  private static long spreadBits(long v) {
+    v &= 0xFFFFFFFFL;
+    v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+    v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+    v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+    v = (v | (v << 2)) & 0x3333333333333333L;
+    v = (v | (v << 1)) & 0x5555555555555555L;
+    return v;
+  }
 
-    return geohash.toString();
+  /** The inverse of {@link #spreadBits(long)}: gathers the even bits of v. */
+  private static long compactBits(long v) {
+    v &= 0x5555555555555555L;
+    v = (v | (v >>> 1)) & 0x3333333333333333L;
+    v = (v | (v >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+    v = (v | (v >>> 4)) & 0x00FF00FF00FF00FFL;
+    v = (v | (v >>> 8)) & 0x0000FFFF0000FFFFL;
+    v = (v | (v >>> 16)) & 0xFFFFFFFFL;
+    return v;
   }
 
   /**
@@ -120,34 +177,111 @@ public class GeohashUtils {
 
   /** Returns min-max lat, min-max lon. */
   public static Rectangle decodeBoundary(String geohash, SpatialContext ctx) {
-    double minY = -90, maxY = 90, minX = -180, maxX = 180;
-    boolean isEven = true;
-
-    for (int i = 0; i < geohash.length(); i++) {
-      char c = geohash.charAt(i);
-      if (c >= 'A' && c <= 'Z')
-        c -= ('A' - 'a');
-      final int cd = BASE_32_IDX[c - BASE_32[0]];//TODO check successful?
-
-      for (int mask : BITS) {
-        if (isEven) {
-          if ((cd & mask) != 0) {
-            minX = (minX + maxX) / 2D;
-          } else {
-            maxX = (minX + maxX) / 2D;
-          }
+    double[] box = decodeBox(geohash);
+    return ctx.makeRect(box[0], box[1], box[2], box[3]);
+  }
+
+  /** Like {@link #decodeBoundary(String, SpatialContext)} but for a geohash id from {@link #CELL_IDS}. */
+  public static Rectangle decodeBoundary(long cellId, SpatialContext ctx) {
+    double[] box = decodeBox(cellId);
+    return ctx.makeRect(box[0], box[1], box[2], box[3]);
+  }
+
+  /**
+   * Returns the geohash's box as minX, maxX, minY, maxY, before any normalization by a {@link SpatialContext} (which
+   * might turn a maxX of 180 into -180).
+   */
+  static double[] decodeBox(String geohash) {
+    final int fast = Math.min(geohash.length(), CELL_IDS.getMaxLevels());
+    long cellId = 1L;
+    for (int i = 0; i < fast; i++) {
+      cellId = (cellId << 5) | getCharIdx(geohash.charAt(i));
+    }
+    double[] box = decodeBox(cellId);
+    for (int i = fast; i < geohash.length(); i++) {
+      decodeChar(getCharIdx(geohash.charAt(i)), i, box);
+    }
+    return box;
+  }
+
+  /**
+   * Like {@link #decodeBox(String)} but for a geohash id from {@link #CELL_IDS}. The interleaved bits are gathered
+   * back into the two quantized coordinates, which give the box directly. The bounds are the same values the bit by
+   * bit bisection would compute since they're all exact in a double.
+   */
+  static double[] decodeBox(long cellId) {
+    final int bits = 5 * CELL_IDS.getLevel(cellId);
+    final long hash = CELL_IDS.getPath(cellId) << (5 * CELL_IDS.getMaxLevels() - bits);//left aligned to 60 bits
+    final int lonBits = (bits + 1) / 2;//longitude comes first
+    final int latBits = bits / 2;
+    final double width = 360D / (1L << lonBits);
+    final double height = 180D / (1L << latBits);
+    final double minX = -180 + (compactBits(hash >>> 1) >>> (30 - lonBits)) * width;
+    final double minY = -90 + (compactBits(hash) >>> (30 - latBits)) * height;
+    return new double[]{minX, minX + width, minY, minY + height};
+  }
+
+  /** The index of a geohash character; upper case is accepted. */
+  static int getCharIdx(char c) {
+    if (c >= 'A' && c <= 'Z')
+      c -= ('A' - 'a');
+    return BASE_32_IDX[c - BASE_32[0]];//TODO check successful?
+  }
+
+  /**
+   * Returns the index of the character at position charIdx of the point's geohash, given the box of the geohash
+   * before it (minX, maxX, minY, maxY), and narrows the box to that character. The inverse of
+   * {@link #decodeChar(int, int, double[])}; ties go to the lower half like {@link #encodeLatLon(double, double, int)}.
+   */
+  static int encodeChar(double latitude, double longitude, int charIdx, double[] box) {
+    boolean isEven = (charIdx & 1) == 0;
+    int ch = 0;
+    for (int mask : BITS) {
+      if (isEven) {
+        double mid = (box[0] + box[1]) / 2D;
+        if (longitude > mid) {
+          ch |= mask;
+          box[0] = mid;
+        } else {
+          box[1] = mid;
+        }
+      } else {
+        double mid = (box[2] + box[3]) / 2D;
+        if (latitude > mid) {
+          ch |= mask;
+          box[2] = mid;
         } else {
-          if ((cd & mask) != 0) {
-            minY = (minY + maxY) / 2D;
-          } else {
-            maxY = (minY + maxY) / 2D;
-          }
+          box[3] = mid;
         }
-        isEven = !isEven;
       }
+      isEven = !isEven;
+    }
+    return ch;
+  }
+
+  static char getChar(int idx) {
+    return BASE_32[idx];
+  }
 
+  /** Narrows the box to the given character (as its index) at position charIdx of a geohash. */
+  static void decodeChar(int cd, int charIdx, double[] box) {
+    boolean isEven = (charIdx & 1) == 0;//5 bits per char, so even chars start with longitude
+    for (int mask : BITS) {
+      if (isEven) {
+        if ((cd & mask) != 0) {
+          box[0] = (box[0] + box[1]) / 2D;
+        } else {
+          box[1] = (box[0] + box[1]) / 2D;
+        }
+      } else {
+        if ((cd & mask) != 0) {
+          box[2] = (box[2] + box[3]) / 2D;
+        } else {
+          box[3] = (box[2] + box[3]) / 2D;
+        }
+      }
+      isEven = !isEven;
     }
-    return ctx.makeRect(minX, maxX, minY, maxY);
   }
 
   /** Array of geohashes 1 level below the baseGeohash. Sorted. */
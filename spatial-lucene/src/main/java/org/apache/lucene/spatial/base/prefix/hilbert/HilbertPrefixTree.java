@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.base.prefix.hilbert;
+
+import org.apache.lucene.spatial.base.context.SpatialContext;
+import org.apache.lucene.spatial.base.prefix.CellIds;
+import org.apache.lucene.spatial.base.prefix.CellShapeTable;
+import org.apache.lucene.spatial.base.prefix.Node;
+import org.apache.lucene.spatial.base.prefix.SpatialPrefixTree;
+import org.apache.lucene.spatial.base.prefix.SpatialPrefixTreeFactory;
+import org.apache.lucene.spatial.base.shape.Point;
+import org.apache.lucene.spatial.base.shape.Rectangle;
+import org.apache.lucene.spatial.base.shape.Shape;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A quad tree whose sub-cells are ordered along a
+ * <a href="http://en.wikipedia.org/wiki/Hilbert_curve">Hilbert curve</a> instead of the Z-order of
+ * {@link org.apache.lucene.spatial.base.prefix.quad.QuadPrefixTree}. The token characters A,B,C,D are the position of
+ * a sub-cell along the curve within its parent, so cells that are adjacent in term order are also adjacent in space
+ * (Z-order jumps between distant cells at each quadrant boundary). A region therefore maps to fewer and longer runs
+ * of consecutive terms, and nearby documents end up nearer each other in postings.
+ * <p/>
+ * The curve's orientation within a cell is one of four transformations of the unit square (identity, swap x & y,
+ * anti-swap, and rotate by 180 degrees). They form a group in which composition is XOR of the codes below, so a
+ * cell's orientation is its parent's XOR'ed with that of its digit.
+ */
+public class HilbertPrefixTree extends SpatialPrefixTree {
+
+  public static class Factory extends SpatialPrefixTreeFactory {
+
+    @Override
+    protected int getLevelForDistance(double degrees) {
+      HilbertPrefixTree grid = new HilbertPrefixTree(ctx, MAX_LEVELS_POSSIBLE);
+      return grid.getLevelForDistance(degrees) + 1;//returns 1 greater
+    }
+
+    @Override
+    protected SpatialPrefixTree newSPT() {
+      return new HilbertPrefixTree(ctx,
+          maxLevels != null ? maxLevels : MAX_LEVELS_POSSIBLE);
+    }
+  }
+
+  public static final int MAX_LEVELS_POSSIBLE = 50;
+
+  public static final int DEFAULT_MAX_LEVELS = 12;
+
+  private static final CellIds CELL_IDS = new CellIds(2, new byte[]{'A', 'B', 'C', 'D'});
+
+  //orientations, as transformations of a quadrant's x & y bits
+  private static final int IDENTITY = 0;
+  private static final int SWAP = 1;//x,y -> y,x
+  private static final int ANTI_SWAP = 2;//x,y -> 1-y,1-x
+  //3 is ANTI_SWAP ^ SWAP: x,y -> 1-x,1-y
+
+  //in the identity orientation the curve enters at the bottom left and leaves at the bottom right
+  private static final int[] DIGIT_X = {0, 0, 1, 1};
+  private static final int[] DIGIT_Y = {0, 1, 1, 0};
+  private static final int[] DIGIT_ORIENTATION = {SWAP, IDENTITY, IDENTITY, ANTI_SWAP};
+
+  private final double xmin;
+  private final double ymin;
+  private final double gridW;
+  private final double gridH;
+
+  final double[] levelW;//the size of cells of level i+1
+  final double[] levelH;
+
+  private final CellShapeTable shapeTable;
+
+  public HilbertPrefixTree(SpatialContext ctx, Rectangle bounds, int maxLevels) {
+    super(ctx, maxLevels);
+    this.xmin = bounds.getMinX();
+    this.ymin = bounds.getMinY();
+    this.gridW = bounds.getMaxX() - xmin;
+    this.gridH = bounds.getMaxY() - ymin;
+
+    levelW = new double[maxLevels];
+    levelH = new double[maxLevels];
+    levelW[0] = gridW / 2.0;
+    levelH[0] = gridH / 2.0;
+    for (int i = 1; i < levelW.length; i++) {
+      levelW[i] = levelW[i - 1] / 2.0;
+      levelH[i] = levelH[i - 1] / 2.0;
+    }
+    shapeTable = new CellShapeTable(CELL_IDS, maxLevels, CellShapeTable.DEFAULT_MAX_SLOTS);
+  }
+
+  public HilbertPrefixTree(SpatialContext ctx) {
+    this(ctx, DEFAULT_MAX_LEVELS);
+  }
+
+  public HilbertPrefixTree(SpatialContext ctx, int maxLevels) {
+    this(ctx, ctx.getWorldBounds(), maxLevels);
+  }
+
+  /** Applies the orientation to a quadrant bit; bit 0 for x, or 1 for y. Orientations are their own inverse. */
+  private static int orient(int orientation, int x, int y, int bit) {
+    switch (orientation) {
+      case IDENTITY: return bit == 0 ? x : y;
+      case SWAP: return bit == 0 ? y : x;
+      case ANTI_SWAP: return 1 - (bit == 0 ? y : x);
+      default: return 1 - (bit == 0 ? x : y);
+    }
+  }
+
+  @Override
+  public int getLevelForDistance(double dist) {
+    for (int i = 1; i < maxLevels; i++) {
+      //note: level[i] is actually a lookup for level i+1
+      if(dist > levelW[i] || dist > levelH[i]) {
+        return i;
+      }
+    }
+    return maxLevels;
+  }
+
+  @Override
+  public Node getNode(Point p, int level) {
+    Node cell = getWorldNode();
+    for (int i = 0; i < level; i++) {
+      cell = cell.getSubCell(p);
+    }
+    return cell;
+  }
+
+  @Override
+  public CellIds getCellIds() {
+    return CELL_IDS;
+  }
+
+  @Override
+  public Node getNode(String token) {
+    return new HilbertCell(token);
+  }
+
+  @Override
+  public Node getNode(byte[] bytes, int offset, int len) {
+    return new HilbertCell(bytes, offset, len);
+  }
+
+  @Override //for performance
+  public List<Node> getNodes(Shape shape, int detailLevel, boolean inclParents) {
+    if (shape instanceof Point)
+      return super.getNodesAltPoint((Point) shape, detailLevel, inclParents);
+    else
+      return super.getNodes(shape, detailLevel, inclParents);
+  }
+
+  class HilbertCell extends Node {
+
+    //computed along with the shape unless given by the parent. Note: no field initializers; Node's constructor
+    // may call getShape() before they would run.
+    private boolean boundsKnown;
+    private int orientation;
+    private double cellXmin;
+    private double cellYmin;
+    private Shape shape;//cache
+
+    HilbertCell(String token) {
+      super(HilbertPrefixTree.this, token);
+    }
+
+    HilbertCell(byte[] bytes, int off, int len) {
+      super(HilbertPrefixTree.this, bytes, off, len);
+    }
+
+    HilbertCell(long id) {
+      super(HilbertPrefixTree.this, id);
+    }
+
+    @Override
+    public void reset(byte[] bytes, int off, int len) {
+      super.reset(bytes, off, len);
+      boundsKnown = false;
+      shape = null;
+    }
+
+    private HilbertCell newSubCell(int digit) {
+      HilbertCell cell = getLevel() < CELL_IDS.getMaxLevels() ? new HilbertCell(CELL_IDS.getChild(getId(), digit))
+          : new HilbertCell(getTokenString() + (char) ('A' + digit));
+      final int level = getLevel();
+      cell.boundsKnown = true;
+      cell.orientation = orientation ^ DIGIT_ORIENTATION[digit];
+      //same arithmetic as computeBounds()
+      cell.cellXmin = cellXmin + orient(orientation, DIGIT_X[digit], DIGIT_Y[digit], 0) * levelW[level];
+      cell.cellYmin = cellYmin + orient(orientation, DIGIT_X[digit], DIGIT_Y[digit], 1) * levelH[level];
+      return cell;
+    }
+
+    @Override
+    public Collection<Node> getSubCells() {
+      computeBounds();
+      List<Node> cells = new ArrayList<Node>(4);
+      for (int digit = 0; digit < 4; digit++) {
+        cells.add(newSubCell(digit));
+      }
+      return cells;
+    }
+
+    @Override
+    public int getSubCellsSize() {
+      return 4;
+    }
+
+    /** Chooses the sub-cell from this cell's bounds. On an edge, the left then the upper one wins, like the quad tree. */
+    @Override
+    public Node getSubCell(Point p) {
+      computeBounds();
+      final int level = getLevel();
+      final int x = p.getX() <= cellXmin + levelW[level] ? 0 : 1;
+      final int y = p.getY() >= cellYmin + levelH[level] ? 1 : 0;
+      //to the identity orientation, in which the digit follows the curve
+      final int cx = orient(orientation, x, y, 0);
+      final int cy = orient(orientation, x, y, 1);
+      return newSubCell(cx == 0 ? cy : 3 - cy);
+    }
+
+    private void computeBounds() {
+      if (boundsKnown)
+        return;
+      final long id = getIdIfKnown();
+      final String token = id == 0 ? getTokenString() : null;
+      final int len = getLevel();
+      int o = IDENTITY;
+      double x = xmin;
+      double y = ymin;
+      for (int i = 0; i < len; i++) {
+        int digit = token != null ? token.charAt(i) - 'A' : CELL_IDS.getDigit(id, i + 1);
+        if (digit < 0 || digit > 3)
+          throw new RuntimeException("unexpected char: " + token.charAt(i));
+        x += orient(o, DIGIT_X[digit], DIGIT_Y[digit], 0) * levelW[i];
+        y += orient(o, DIGIT_X[digit], DIGIT_Y[digit], 1) * levelH[i];
+        o ^= DIGIT_ORIENTATION[digit];
+      }
+      cellXmin = x;
+      cellYmin = y;
+      orientation = o;
+      boundsKnown = true;
+    }
+
+    @Override
+    public Shape getShape() {
+      if (shape == null) {
+        computeBounds();//needed for sub-cells anyway
+        final int len = getLevel();
+        //the upper levels' shapes are shared
+        final long id = len <= shapeTable.getMaxLevel() ? getId() : 0;
+        if (id != 0)
+          shape = shapeTable.get(id);
+        if (shape == null) {
+          double width = len > 0 ? levelW[len - 1] : gridW;
+          double height = len > 0 ? levelH[len - 1] : gridH;
+          shape = ctx.makeRect(cellXmin, cellXmin + width, cellYmin, cellYmin + height);
+          if (id != 0)
+            shapeTable.put(id, shape);
+        }
+      }
+      return shape;
+    }
+  }//HilbertCell
+}
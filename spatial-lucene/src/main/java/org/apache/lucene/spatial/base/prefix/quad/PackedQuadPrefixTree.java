@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.base.prefix.quad;
+
+import org.apache.lucene.spatial.base.context.SpatialContext;
+import org.apache.lucene.spatial.base.prefix.CellIds;
+import org.apache.lucene.spatial.base.prefix.Node;
+import org.apache.lucene.spatial.base.prefix.SpatialPrefixTree;
+import org.apache.lucene.spatial.base.prefix.SpatialPrefixTreeFactory;
+import org.apache.lucene.spatial.base.shape.Point;
+import org.apache.lucene.spatial.base.shape.Rectangle;
+import org.apache.lucene.spatial.base.shape.Shape;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The same grid as {@link QuadPrefixTree}, but with 3 levels per token character instead of 1, so its terms are
+ * about a third as long.
+ * <p/>
+ * Each character is the position of a path of 1 to 3 quad digits in a depth-first (pre-order) numbering of all such
+ * paths, offset to start just after {@link Node#LEAF_BYTE}. That's 4 + 16 + 64 = 84 characters, from ',' to 127, so
+ * tokens remain single byte UTF-8. A cell's last character may hold fewer than 3 levels; a sub-cell then replaces it
+ * rather than appending one. Thanks to the pre-order numbering, tokens still sort depth-first like the quad tree's
+ * and a leaf term (token + leaf byte) sorts before the cells beneath it. But a cell's token is no longer necessarily
+ * a prefix of the tokens beneath it, so {@link Node#isPrefixOf(byte[], int, int)} compares the last character as a
+ * range.
+ * <p/>
+ * Cells don't have {@link CellIds}.
+ */
+public class PackedQuadPrefixTree extends QuadPrefixTree {
+
+  public static class Factory extends SpatialPrefixTreeFactory {
+
+    @Override
+    protected int getLevelForDistance(double degrees) {
+      PackedQuadPrefixTree grid = new PackedQuadPrefixTree(ctx, MAX_LEVELS_POSSIBLE);
+      return grid.getLevelForDistance(degrees) + 1;//returns 1 greater
+    }
+
+    @Override
+    protected SpatialPrefixTree newSPT() {
+      return new PackedQuadPrefixTree(ctx,
+          maxLevels != null ? maxLevels : MAX_LEVELS_POSSIBLE);
+    }
+  }
+
+  public static final int LEVELS_PER_CHAR = 3;
+
+  private static final int CODE_OFFSET = Node.LEAF_BYTE + 1;
+  private static final int NUM_CODES = 4 + 16 + 64;
+
+  private static final int[] CODE_DEPTH = new int[NUM_CODES];//the number of levels of the character
+  private static final int[] CODE_PATH = new int[NUM_CODES];//its quad digits, 2 bits each
+  private static final int[][] PATH_TO_CODE = new int[LEVELS_PER_CHAR + 1][];//by depth
+  private static final int[] SUBTREE_SIZE = {NUM_CODES, 21, 5, 1};//the number of codes from one at a depth
+
+  static {
+    for (int depth = 1; depth <= LEVELS_PER_CHAR; depth++) {
+      PATH_TO_CODE[depth] = new int[1 << (2 * depth)];
+    }
+    int numCodes = assignCodes(1, 0, 0);
+    assert numCodes == NUM_CODES && CODE_OFFSET + NUM_CODES <= 128;
+  }
+
+  private static int assignCodes(int depth, int path, int code) {
+    for (int digit = 0; digit < 4; digit++) {
+      int childPath = (path << 2) | digit;
+      CODE_DEPTH[code] = depth;
+      CODE_PATH[code] = childPath;
+      PATH_TO_CODE[depth][childPath] = code;
+      code++;
+      if (depth < LEVELS_PER_CHAR)
+        code = assignCodes(depth + 1, childPath, code);
+    }
+    return code;
+  }
+
+  public PackedQuadPrefixTree(SpatialContext ctx, Rectangle bounds, int maxLevels) {
+    super(ctx, bounds, maxLevels);
+  }
+
+  public PackedQuadPrefixTree(SpatialContext ctx, int maxLevels) {
+    this(ctx, ctx.getWorldBounds(), maxLevels);
+  }
+
+  /** Converts a token of {@link QuadPrefixTree} (one of A,B,C,D per level) to the equivalent one of this tree. */
+  public static String toPackedToken(String quadToken) {
+    StringBuilder packed = new StringBuilder((quadToken.length() + LEVELS_PER_CHAR - 1) / LEVELS_PER_CHAR);
+    for (int i = 0; i < quadToken.length(); i += LEVELS_PER_CHAR) {
+      int depth = Math.min(LEVELS_PER_CHAR, quadToken.length() - i);
+      int path = 0;
+      for (int j = i; j < i + depth; j++) {
+        int digit = quadToken.charAt(j) - 'A';
+        if (digit < 0 || digit > 3)
+          throw new IllegalArgumentException("unexpected char: " + quadToken.charAt(j));
+        path = (path << 2) | digit;
+      }
+      packed.append((char) (CODE_OFFSET + PATH_TO_CODE[depth][path]));
+    }
+    return packed.toString();
+  }
+
+  /** The inverse of {@link #toPackedToken(String)}. */
+  public static String toQuadToken(String packedToken) {
+    StringBuilder quad = new StringBuilder(packedToken.length() * LEVELS_PER_CHAR);
+    for (int i = 0; i < packedToken.length(); i++) {
+      int code = toCode(packedToken.charAt(i));
+      for (int j = CODE_DEPTH[code] - 1; j >= 0; j--) {
+        quad.append((char) ('A' + ((CODE_PATH[code] >>> (2 * j)) & 3)));
+      }
+    }
+    return quad.toString();
+  }
+
+  private static int toCode(int c) {
+    int code = c - CODE_OFFSET;
+    if (code < 0 || code >= NUM_CODES)
+      throw new IllegalArgumentException("unexpected char: " + (char) c);
+    return code;
+  }
+
+  @Override
+  public CellIds getCellIds() {
+    return null;
+  }
+
+  @Override
+  public Node getNode(String token) {
+    return new PackedQuadCell(token);
+  }
+
+  @Override
+  public Node getNode(byte[] bytes, int offset, int len) {
+    return new PackedQuadCell(bytes, offset, len);
+  }
+
+  class PackedQuadCell extends Node {
+
+    PackedQuadCell(String token) {
+      super(PackedQuadPrefixTree.this, token);
+    }
+
+    PackedQuadCell(byte[] bytes, int off, int len) {
+      super(PackedQuadPrefixTree.this, bytes, off, len);
+    }
+
+    @Override
+    public void reset(byte[] bytes, int off, int len) {
+      super.reset(bytes, off, len);
+      shape = null;
+    }
+
+    @Override
+    public int getLevel() {
+      final int len = getTokenLength();
+      if (len == 0)
+        return 0;
+      return LEVELS_PER_CHAR * (len - 1) + CODE_DEPTH[toCode(getTokenByte(len - 1))];
+    }
+
+    @Override
+    public boolean isPrefixOf(byte[] termBytes, int off, int len) {
+      final int tokenLen = getTokenLength();
+      if (tokenLen == 0)
+        return true;
+      if (len < tokenLen)
+        return false;
+      for (int i = 0; i < tokenLen - 1; i++) {
+        if (termBytes[off + i] != getTokenByte(i))
+          return false;
+      }
+      //the codes beneath a code in pre-order follow it
+      final int code = toCode(getTokenByte(tokenLen - 1));
+      final int termCode = termBytes[off + tokenLen - 1] - CODE_OFFSET;//might be the leaf byte of a parent
+      return termCode >= code && termCode < code + SUBTREE_SIZE[CODE_DEPTH[code]];
+    }
+
+    /** Makes a sub-cell, given the digit (0-3 for A-D) of its last level. */
+    private PackedQuadCell newSubCell(int digit) {
+      final String token = getTokenString();
+      final int len = token.length();
+      if (len == 0 || CODE_DEPTH[toCode(token.charAt(len - 1))] == LEVELS_PER_CHAR)
+        return new PackedQuadCell(token + (char) (CODE_OFFSET + PATH_TO_CODE[1][digit]));
+      final int code = toCode(token.charAt(len - 1));
+      final int path = (CODE_PATH[code] << 2) | digit;
+      return new PackedQuadCell(token.substring(0, len - 1)
+          + (char) (CODE_OFFSET + PATH_TO_CODE[CODE_DEPTH[code] + 1][path]));
+    }
+
+    @Override
+    public Collection<Node> getSubCells() {
+      List<Node> cells = new ArrayList<Node>(4);
+      for (int digit = 0; digit < 4; digit++) {
+        cells.add(newSubCell(digit));
+      }
+      return cells;
+    }
+
+    @Override
+    public int getSubCellsSize() {
+      return 4;
+    }
+
+    @Override
+    public Node getSubCell(Point p) {
+      final Rectangle bounds = (Rectangle) getShape();
+      final int level = getLevel();
+      final int digit = getSubCellDigit(bounds, level, p);
+      PackedQuadCell cell = newSubCell(digit);
+      cell.shape = getSubCellShape(bounds, level, digit);
+      return cell;
+    }
+
+    private Shape shape;//cache
+
+    @Override
+    public Shape getShape() {
+      if (shape == null)
+        shape = makeShape();
+      return shape;
+    }
+
+    //the same arithmetic as QuadCell.makeShape()
+    private Rectangle makeShape() {
+      final int len = getTokenLength();
+      double xmin = PackedQuadPrefixTree.this.xmin;
+      double ymin = PackedQuadPrefixTree.this.ymin;
+      int level = 0;
+      for (int i = 0; i < len; i++) {
+        final int code = toCode(getTokenByte(i));
+        for (int j = CODE_DEPTH[code] - 1; j >= 0; j--, level++) {
+          final int digit = (CODE_PATH[code] >>> (2 * j)) & 3;
+          if (digit < 2)//A or B
+            ymin += levelH[level];
+          if ((digit & 1) != 0)//B or D
+            xmin += levelW[level];
+        }
+      }
+      double width, height;
+      if (level > 0) {
+        width = levelW[level-1];
+        height = levelH[level-1];
+      } else {
+        width = gridW;
+        height = gridH;
+      }
+      return ctx.makeRect(xmin, xmin + width, ymin, ymin + height);
+    }
+  }//PackedQuadCell
+}
@@ -17,6 +17,8 @@
 
 package org.apache.lucene.spatial.base.prefix.quad;
 
+import org.apache.lucene.spatial.base.prefix.CellIds;
+import org.apache.lucene.spatial.base.prefix.CellShapeTable;
 import org.apache.lucene.spatial.base.prefix.SpatialPrefixTreeFactory;
 import org.apache.lucene.spatial.base.shape.SpatialRelation;
 import org.apache.lucene.spatial.base.context.SpatialContext;
@@ -25,7 +27,6 @@ import org.apache.lucene.spatial.base.prefix.SpatialPrefixTree;
 import org.apache.lucene.spatial.base.shape.Point;
 import org.apache.lucene.spatial.base.shape.Rectangle;
 import org.apache.lucene.spatial.base.shape.Shape;
-import org.apache.lucene.spatial.base.shape.simple.PointImpl;
 
 import java.text.NumberFormat;
 import java.util.ArrayList;
@@ -52,14 +53,16 @@ public class QuadPrefixTree extends SpatialPrefixTree {
   public static final int MAX_LEVELS_POSSIBLE = 50;//not really sure how big this should be
 
   public static final int DEFAULT_MAX_LEVELS = 12;
-  private final double xmin;
+
+  //A,B,C,D are the digits 0-3, i.e. bit 0 is the x half and bit 1 the inverse of the y half: a Morton code
+  private static final CellIds CELL_IDS = new CellIds(2, new byte[]{'A', 'B', 'C', 'D'});
+
+  final double xmin;
   private final double xmax;
-  private final double ymin;
+  final double ymin;
   private final double ymax;
-  private final double xmid;
-  private final double ymid;
 
-  private final double gridW;
+  final double gridW;
   public final double gridH;
 
   final double[] levelW;
@@ -67,6 +70,8 @@ public class QuadPrefixTree extends SpatialPrefixTree {
   final int[]    levelS; // side
   final int[]    levelN; // number
 
+  private final CellShapeTable shapeTable;//null if there are no cell ids
+
   public QuadPrefixTree(
       SpatialContext ctx, Rectangle bounds, int maxLevels) {
     super(ctx, maxLevels);
@@ -82,8 +87,6 @@ public class QuadPrefixTree extends SpatialPrefixTree {
 
     gridW = xmax - xmin;
     gridH = ymax - ymin;
-    this.xmid = xmin + gridW/2.0;
-    this.ymid = ymin + gridH/2.0;
     levelW[0] = gridW/2.0;
     levelH[0] = gridH/2.0;
     levelS[0] = 2;
@@ -95,6 +98,8 @@ public class QuadPrefixTree extends SpatialPrefixTree {
       levelS[i] = levelS[i - 1] * 2;
       levelN[i] = levelN[i - 1] * 4;
     }
+    CellIds cellIds = getCellIds();
+    shapeTable = cellIds != null ? new CellShapeTable(cellIds, maxLevels, CellShapeTable.DEFAULT_MAX_SLOTS) : null;
   }
 
   public QuadPrefixTree(SpatialContext ctx) {
@@ -131,9 +136,16 @@ public class QuadPrefixTree extends SpatialPrefixTree {
 
   @Override
   public Node getNode(Point p, int level) {
-    List<Node> cells = new ArrayList<Node>(1);
-    build(xmid, ymid, 0, cells, new StringBuilder(), new PointImpl(p.getX(),p.getY()), level);
-    return cells.get(0);//note cells could be longer if p on edge
+    Node cell = getWorldNode();
+    for (int i = 0; i < level; i++) {
+      cell = cell.getSubCell(p);
+    }
+    return cell;
+  }
+
+  @Override
+  public CellIds getCellIds() {
+    return CELL_IDS;
   }
 
   @Override
@@ -154,65 +166,27 @@ public class QuadPrefixTree extends SpatialPrefixTree {
       return super.getNodes(shape, detailLevel, inclParents);
   }
 
-  private void build(
-      double x,
-      double y,
-      int level,
-      List<Node> matches,
-      StringBuilder str,
-      Shape shape,
-      int maxLevel) {
-    assert str.length() == level;
-    double w = levelW[level] / 2;
-    double h = levelH[level] / 2;
-
-    // Z-Order
-    // http://en.wikipedia.org/wiki/Z-order_%28curve%29
-    checkBattenberg('A', x - w, y + h, level, matches, str, shape, maxLevel);
-    checkBattenberg('B', x + w, y + h, level, matches, str, shape, maxLevel);
-    checkBattenberg('C', x - w, y - h, level, matches, str, shape, maxLevel);
-    checkBattenberg('D', x + w, y - h, level, matches, str, shape, maxLevel);
-
-    // possibly consider hilbert curve
-    // http://en.wikipedia.org/wiki/Hilbert_curve
-    // http://blog.notdot.net/2009/11/Damn-Cool-Algorithms-Spatial-indexing-with-Quadtrees-and-Hilbert-Curves
-    // if we actually use the range property in the query, this could be useful
+  /**
+   * The digit (0-3 for A-D) of the sub-cell of a cell with the given bounds & level that contains the point. On an
+   * edge, the first in A,B,C,D order is chosen.
+   */
+  int getSubCellDigit(Rectangle bounds, int level, Point p) {
+    final boolean left = p.getX() <= bounds.getMinX() + levelW[level];
+    final boolean top = p.getY() >= bounds.getMinY() + levelH[level];
+    return (top ? 0 : 2) + (left ? 0 : 1);
   }
 
-  private void checkBattenberg(
-      char c,
-      double cx,
-      double cy,
-      int level,
-      List<Node> matches,
-      StringBuilder str,
-      Shape shape,
-      int maxLevel) {
-    assert str.length() == level;
-    double w = levelW[level] / 2;
-    double h = levelH[level] / 2;
-
-    int strlen = str.length();
-    Rectangle rectangle = ctx.makeRect(cx - w, cx + w, cy - h, cy + h);
-    SpatialRelation v = shape.relate(rectangle, ctx);
-    if (SpatialRelation.CONTAINS == v) {
-      str.append(c);
-      //str.append(SpatialPrefixGrid.COVER);
-      matches.add(new QuadCell(str.toString(),v.transpose()));
-    } else if (SpatialRelation.DISJOINT == v) {
-      // nothing
-    } else { // SpatialRelation.WITHIN, SpatialRelation.INTERSECTS
-      str.append(c);
-
-      int nextLevel = level+1;
-      if (nextLevel >= maxLevel) {
-        //str.append(SpatialPrefixGrid.INTERSECTS);
-        matches.add(new QuadCell(str.toString(),v.transpose()));
-      } else {
-        build(cx, cy, nextLevel, matches, str, shape, maxLevel);
-      }
-    }
-    str.setLength(strlen);
+  /** The bounds of a sub-cell of a cell with the given bounds & level; the same arithmetic as from its token. */
+  Rectangle getSubCellShape(Rectangle bounds, int level, int digit) {
+    final double w = levelW[level];
+    final double h = levelH[level];
+    double xmin = bounds.getMinX();
+    double ymin = bounds.getMinY();
+    if (digit < 2)//A or B
+      ymin += h;
+    if ((digit & 1) != 0)//B or D
+      xmin += w;
+    return ctx.makeRect(xmin, xmin + w, ymin, ymin + h);
   }
 
   class QuadCell extends Node {
@@ -230,19 +204,35 @@ public class QuadPrefixTree extends SpatialPrefixTree {
       super(QuadPrefixTree.this, bytes, off, len);
     }
 
+    QuadCell(long id) {
+      super(QuadPrefixTree.this, id);
+    }
+
     @Override
     public void reset(byte[] bytes, int off, int len) {
       super.reset(bytes, off, len);
+      parentBounds = null;
       shape = null;
     }
 
     @Override
     public Collection<Node> getSubCells() {
+      final Rectangle bounds = (Rectangle) getShape();
       List<Node> cells = new ArrayList<Node>(4);
-      cells.add(new QuadCell(getTokenString()+"A"));
-      cells.add(new QuadCell(getTokenString()+"B"));
-      cells.add(new QuadCell(getTokenString()+"C"));
-      cells.add(new QuadCell(getTokenString()+"D"));
+      if (getLevel() < CELL_IDS.getMaxLevels()) {
+        long id = getId();
+        for (int digit = 0; digit < 4; digit++) {
+          QuadCell cell = new QuadCell(CELL_IDS.getChild(id, digit));
+          cell.parentBounds = bounds;
+          cells.add(cell);
+        }
+        return cells;
+      }
+      for (char c = 'A'; c <= 'D'; c++) {
+        QuadCell cell = new QuadCell(getTokenString() + c);
+        cell.parentBounds = bounds;
+        cells.add(cell);
+      }
       return cells;
     }
 
@@ -253,25 +243,54 @@ public class QuadPrefixTree extends SpatialPrefixTree {
 
     @Override
     public Node getSubCell(Point p) {
-      return QuadPrefixTree.this.getNode(p,getLevel()+1);//not performant!
+      final Rectangle bounds = (Rectangle) getShape();
+      final int level = getLevel();
+      final int digit = getSubCellDigit(bounds, level, p);
+      QuadCell cell = level < CELL_IDS.getMaxLevels() ? new QuadCell(CELL_IDS.getChild(getId(), digit))
+          : new QuadCell(getTokenString() + (char) ('A' + digit));
+      cell.shape = getSubCellShape(bounds, level, digit);
+      return cell;
     }
 
+    private Rectangle parentBounds;//if known, the shape is computed from it
     private Shape shape;//cache
 
     @Override
     public Shape getShape() {
-      if (shape == null)
-        shape = makeShape();
+      if (shape == null) {
+        //the upper levels' shapes are shared
+        final long id = shapeTable != null && getLevel() <= shapeTable.getMaxLevel() ? getId() : 0;
+        if (id != 0)
+          shape = shapeTable.get(id);
+        if (shape == null) {
+          shape = makeShape();
+          if (id != 0)
+            shapeTable.put(id, shape);
+        }
+        parentBounds = null;
+      }
       return shape;
     }
 
     private Rectangle makeShape() {
-      String token = getTokenString();
+      final int level = getLevel();
+      if (parentBounds != null) {
+        final long id = getIdIfKnown();
+        final int digit = id != 0 ? CELL_IDS.getDigit(id, level) : getTokenString().charAt(level - 1) - 'A';
+        return getSubCellShape(parentBounds, level - 1, digit);
+      }
+      return makeShapeFromToken();
+    }
+
+    private Rectangle makeShapeFromToken() {
+      final long id = getIdIfKnown();
+      final String token = id == 0 ? getTokenString() : null;
+      final int len = getLevel();
       double xmin = QuadPrefixTree.this.xmin;
       double ymin = QuadPrefixTree.this.ymin;
 
-      for (int i = 0; i < token.length(); i++) {
-        char c = token.charAt(i);
+      for (int i = 0; i < len; i++) {
+        char c = token != null ? token.charAt(i) : (char) ('A' + CELL_IDS.getDigit(id, i + 1));
         if ('A' == c || 'a' == c) {
           ymin += levelH[i];
         } else if ('B' == c || 'b' == c) {
@@ -286,7 +305,6 @@ public class QuadPrefixTree extends SpatialPrefixTree {
           throw new RuntimeException("unexpected char: " + c);
         }
       }
-      int len = token.length();
       double width, height;
       if (len > 0) {
         width = levelW[len-1];
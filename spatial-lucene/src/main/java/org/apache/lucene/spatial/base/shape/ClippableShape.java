@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.base.shape;
+
+import org.apache.lucene.spatial.base.context.SpatialContext;
+
+/**
+ * A shape that can make a simpler version of itself for use within a rectangle, e.g. a polygon without the vertices
+ * that are outside of it. {@link org.apache.lucene.spatial.strategy.prefix.RecursivePrefixTreeFilter} clips the query
+ * shape to each grid cell it descends into, so that the relate() calls beneath the cell are cheaper.
+ */
+public interface ClippableShape extends Shape {
+
+  /**
+   * Returns a shape with the same relation as this one to any shape within the rectangle, except that the clipped
+   * shape is smaller, so an intersecting shape may be found to contain it. May return this shape if it can't or
+   * needn't be simplified.
+   */
+  Shape clip(Rectangle rect, SpatialContext ctx);
+}
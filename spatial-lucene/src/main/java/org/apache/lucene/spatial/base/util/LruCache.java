@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.base.util;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A map that evicts its least recently used entries once their estimated size exceeds a byte budget, and counts
+ * hits, misses, and evictions for sizing the budget. It's the shared core of the spatial caches, such as
+ * {@link org.apache.lucene.spatial.base.prefix.CoveringCache}.
+ * <p/>
+ * Callers estimate the bytes of each key and value (e.g. with {@link RamUsageEstimator}); the cache adds
+ * {@link #ENTRY_OVERHEAD_BYTES} for its own objects.
+ * <p/>
+ * Threadsafe.
+ */
+public class LruCache<K, V> {
+
+  /** The bytes of the cache's own objects per entry: the map entry, its table slot, and the value's holder. */
+  public static final long ENTRY_OVERHEAD_BYTES =
+      RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+          + 5 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_INT)//key, value, next, before, after
+      + 2 * RamUsageEstimator.NUM_BYTES_OBJECT_REF//table slots, given the load factor
+      + RamUsageEstimator.shallowSizeOfInstance(Entry.class);
+
+  /** Chooses entries to remove; see {@link LruCache#removeAll(KeyMatcher)}. */
+  public interface KeyMatcher<K> {
+    boolean matches(K key);
+  }
+
+  private final long maxBytes;
+
+  //access-ordered, so iteration starts with the least recently used
+  private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(64, 0.75f, true);
+  private long ramBytesUsed;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /** @param maxBytes the approximate memory budget for all entries */
+  public LruCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the value, counting a hit, or null, counting a miss. */
+  public V get(K key) {
+    Entry<V> entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    if (entry == null) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Adds or replaces the entry, then evicts the least recently used ones until within budget. An entry that alone
+   * exceeds the budget isn't added, since it would evict everything else.
+   *
+   * @param bytes the estimated bytes of the key and value
+   * @return whether it was added
+   */
+  public boolean put(K key, V value, long bytes) {
+    bytes += ENTRY_OVERHEAD_BYTES;
+    if (bytes > maxBytes)
+      return false;
+    synchronized (this) {
+      Entry<V> previous = entries.put(key, new Entry<V>(value, bytes));
+      if (previous != null)
+        ramBytesUsed -= previous.bytes;
+      ramBytesUsed += bytes;
+      for (Iterator<Entry<V>> it = entries.values().iterator(); ramBytesUsed > maxBytes && it.hasNext(); ) {
+        ramBytesUsed -= it.next().bytes;
+        it.remove();
+        evictionCount.incrementAndGet();
+      }
+    }
+    return true;
+  }
+
+  /** Removes the entries whose keys match; they aren't counted as evictions. */
+  public synchronized void removeAll(KeyMatcher<? super K> matcher) {
+    for (Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<K, Entry<V>> mapEntry = it.next();
+      if (matcher.matches(mapEntry.getKey())) {
+        ramBytesUsed -= mapEntry.getValue().bytes;
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    ramBytesUsed = 0;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** The estimated memory used by the entries, in bytes. */
+  public synchronized long getRamBytesUsed() {
+    return ramBytesUsed;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** The number of entries removed to stay within the byte budget. */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "size:" + size() + ",ramBytesUsed:" + getRamBytesUsed() + ",maxBytes:" + maxBytes +
+        ",hits:" + getHitCount() + ",misses:" + getMissCount() + ",evictions:" + getEvictionCount();
+  }
+
+  private static class Entry<V> {
+    final V value;
+    final long bytes;
+
+    Entry(V value, long bytes) {
+      this.value = value;
+      this.bytes = bytes;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.prefix;
+
+import org.apache.lucene.index.AtomicReaderContext;
+
+/**
+ * A {@link TraversalStatsSink} that sums the stats of all traversals (one per segment per query). It's a standard
+ * MBean, so it can be registered with an MBeanServer to watch it over JMX, e.g.
+ * <code>ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName(...))</code>.
+ * <p/>
+ * Threadsafe.
+ */
+public class AggregateTraversalStats implements TraversalStatsSink, AggregateTraversalStatsMBean {
+
+  private long traversals;
+  private TraversalStats sum;
+
+  public AggregateTraversalStats(int maxLevels) {
+    this.sum = new TraversalStats(maxLevels);
+  }
+
+  @Override
+  public synchronized void record(RecursivePrefixTreeFilter filter, AtomicReaderContext context,
+                                  TraversalStats stats) {
+    traversals++;
+    sum.add(stats);
+    sum.elapsedNanos += stats.elapsedNanos;
+  }
+
+  @Override
+  public synchronized long getTraversals() {
+    return traversals;
+  }
+
+  @Override
+  public synchronized long getSeeks() {
+    return sum.getSeeks();
+  }
+
+  @Override
+  public synchronized long getTermsScanned() {
+    return sum.getTermsScanned();
+  }
+
+  @Override
+  public synchronized long getRelates() {
+    return sum.getRelates();
+  }
+
+  @Override
+  public synchronized long[] getRelatesByLevel() {
+    return sum.relatesByLevel.clone();
+  }
+
+  @Override
+  public synchronized long getLeafHits() {
+    return sum.getLeafHits();
+  }
+
+  @Override
+  public synchronized long getPostingsDocs() {
+    return sum.getPostingsDocs();
+  }
+
+  @Override
+  public synchronized long getElapsedMillis() {
+    return sum.getElapsedNanos() / 1000000;
+  }
+
+  @Override
+  public synchronized void reset() {
+    traversals = 0;
+    sum = new TraversalStats(sum.relatesByLevel.length - 1);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "AggregateTraversalStats(traversals:" + traversals + "," + sum + ")";
+  }
+}
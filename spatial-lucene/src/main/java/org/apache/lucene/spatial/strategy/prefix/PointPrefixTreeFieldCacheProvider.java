@@ -17,27 +17,179 @@
 
 package org.apache.lucene.spatial.strategy.prefix;
 
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.spatial.base.prefix.Node;
 import org.apache.lucene.spatial.base.prefix.SpatialPrefixTree;
 import org.apache.lucene.spatial.base.shape.Point;
+import org.apache.lucene.spatial.strategy.util.MappedPointFieldCache;
+import org.apache.lucene.spatial.strategy.util.PointFieldCache;
+import org.apache.lucene.spatial.strategy.util.ShapeFieldCache;
 import org.apache.lucene.spatial.strategy.util.ShapeFieldCacheProvider;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 public class PointPrefixTreeFieldCacheProvider extends ShapeFieldCacheProvider<Point> {
 
+  /** The sub-directory of an index's directory with the cache files of its segments. */
+  public static final String CACHE_DIR_NAME = "spatial-cache";
+
   final SpatialPrefixTree grid; //
+  private volatile boolean persistent;
 
   public PointPrefixTreeFieldCacheProvider(SpatialPrefixTree grid, String shapeField, int defaultSize) {
     super( shapeField, defaultSize );
     this.grid = grid;
   }
 
-  //A kluge that this is a field
-  private Node scanCell = null;
+  /**
+   * Persists each segment's cache to a file, which is memory-mapped on later opens of the segment (e.g. after a
+   * restart) instead of decoding the segment's terms again; see {@link MappedPointFieldCache}. The files are kept in
+   * the {@link #CACHE_DIR_NAME} sub-directory of the index's directory (IndexWriter ignores sub-directories), so only
+   * indexes in an {@link FSDirectory} are supported. A file is used only if the segment's files are the same as when it
+   * was written. Files of segments that no longer exist are left for {@link #deleteStaleFiles(IndexReader)}. Off by
+   * default.
+   */
+  public void setPersistent(boolean persistent) {
+    this.persistent = persistent;
+  }
+
+  public boolean isPersistent() {
+    return persistent;
+  }
+
+  /** The directory with the cache files of the segment's index, or null if the index isn't in the file system. */
+  private static File getCacheDir(SegmentReader segment) {
+    Directory dir = segment.directory();
+    return dir instanceof FSDirectory ? new File(((FSDirectory) dir).getDirectory(), CACHE_DIR_NAME) : null;
+  }
+
+  private File getCacheFile(File cacheDir, String segmentName) {
+    return new File(cacheDir, segmentName + "." + shapeField + MappedPointFieldCache.EXTENSION);
+  }
+
+  /** Deletes the cache files of this field of the reader's index that aren't of the reader's segments. */
+  public void deleteStaleFiles(IndexReader reader) {
+    File cacheDir = null;
+    Set<String> fileNames = new HashSet<String>();
+    for (AtomicReaderContext leaf : reader.getTopReaderContext().leaves()) {
+      if (!(leaf.reader() instanceof SegmentReader))
+        continue;
+      SegmentReader segment = (SegmentReader) leaf.reader();
+      cacheDir = getCacheDir(segment);
+      fileNames.add(getCacheFile(cacheDir, segment.getSegmentName()).getName());
+    }
+    File[] files = cacheDir != null ? cacheDir.listFiles() : null;
+    if (files == null)
+      return;
+    final String suffix = "." + shapeField + MappedPointFieldCache.EXTENSION;
+    for (File file : files) {
+      final String name = file.getName();
+      //segment names have no '.', so this is exactly this field's
+      if (name.endsWith(suffix) && name.indexOf('.') == name.length() - suffix.length() &&
+          !fileNames.contains(name)) {
+        if (!file.delete())
+          log.warn("Couldn't delete " + file);
+      }
+    }
+  }
+
+  @Override
+  protected ShapeFieldCache<Point> buildCache(AtomicReader reader) throws IOException {
+    if (!persistent || !(reader instanceof SegmentReader))//only segments have a lasting identity
+      return super.buildCache(reader);
+    final SegmentReader segment = (SegmentReader) reader;
+    final File cacheDir = getCacheDir(segment);
+    if (cacheDir == null)
+      return super.buildCache(reader);
+    final File file = getCacheFile(cacheDir, segment.getSegmentName());
+    final String signature = getSignature(segment);
+    try {
+      MappedPointFieldCache cache = MappedPointFieldCache.open(file, signature);
+      if (cache != null) {
+        log.info("Mapped " + file + ": " + cache);
+        return cache;
+      }
+    } catch (IOException e) {
+      log.warn("Rebuilding unreadable " + file, e);
+    }
+    ShapeFieldCache<Point> cache = super.buildCache(reader);
+    try {
+      if (!cacheDir.isDirectory() && !cacheDir.mkdirs() && !cacheDir.isDirectory())
+        throw new IOException("Couldn't create " + cacheDir);
+      if (!MappedPointFieldCache.write((PointFieldCache) cache, file, signature))
+        log.warn("Too large to write to " + file + ": " + cache);
+    } catch (IOException e) {
+      log.warn("Couldn't write " + file, e);
+    }
+    return cache;
+  }
+
+  /**
+   * Identifies what a segment's cache is built from, so that a stale file isn't used; e.g. of an index recreated in
+   * the same directory, whose segments reuse the names. Index files are written once, so the names, lengths and
+   * modification times of the segment's files identify its content. Its deletions don't matter.
+   */
+  private String getSignature(SegmentReader segment) throws IOException {
+    final String segmentName = segment.getSegmentName();
+    StringBuilder files = new StringBuilder();
+    final File indexDir = ((FSDirectory) segment.directory()).getDirectory();
+    String[] names = FSDirectory.listAll(indexDir);
+    Arrays.sort(names);
+    for (String name : names) {
+      if ((name.startsWith(segmentName + ".") || name.startsWith(segmentName + "_")) && !name.endsWith(".del")) {
+        File file = new File(indexDir, name);
+        files.append(name).append(':').append(file.length()).append(':').append(file.lastModified()).append(';');
+      }
+    }
+    Terms terms = segment.terms(shapeField);
+    return "segment:" + segmentName + ",maxDoc:" + segment.maxDoc() +
+        ",sumDocFreq:" + (terms != null ? terms.getSumDocFreq() : 0) + ",files:" + files + ",field:" + shapeField +
+        ",grid:" + grid.getClass().getName() + ",maxLevels:" + grid.getMaxLevels() +
+        ",world:" + grid.getSpatialContext().getWorldBounds();
+  }
+
+  /** Counts each document's points from the postings of the leaf terms, so the cache is loaded without buffering. */
+  @Override
+  protected ShapeFieldCache<Point> newCache(AtomicReader reader) throws IOException {
+    int[] pointCounts = new int[reader.maxDoc()];
+    Terms terms = reader.terms(shapeField);
+    if (terms != null) {
+      TermsEnum te = terms.iterator(null);
+      DocsEnum docs = null;
+      for (BytesRef term = te.next(); term != null; term = te.next()) {
+        if (!getNode(term).isLeaf())
+          continue;
+        docs = te.docs(null, docs, false);//without deletions, as they're loaded
+        for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+          pointCounts[doc]++;
+        }
+      }
+    }
+    return new PointFieldCache(pointCounts, defaultSize);
+  }
 
   @Override
   protected Point readShape(BytesRef term) {
-    scanCell = grid.getNode(term.bytes, term.offset, term.length, scanCell);
-    return scanCell.isLeaf() ? scanCell.getShape().getCenter() : null;
+    Node cell = getNode(term);
+    return cell.isLeaf() ? cell.getShape().getCenter() : null;
+  }
+
+  private Node getNode(BytesRef term) {
+    //a new cell per term, since caches of different segments may be built concurrently
+    return grid.getNode(term.bytes, term.offset, term.length);
   }
 }
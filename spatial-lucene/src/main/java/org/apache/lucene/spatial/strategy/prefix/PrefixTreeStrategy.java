@@ -18,10 +18,10 @@
 package org.apache.lucene.spatial.strategy.prefix;
 
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.spatial.base.distance.DistanceCalculator;
@@ -32,19 +32,31 @@ import org.apache.lucene.spatial.base.shape.Point;
 import org.apache.lucene.spatial.base.shape.Shape;
 import org.apache.lucene.spatial.strategy.SimpleSpatialFieldInfo;
 import org.apache.lucene.spatial.strategy.SpatialStrategy;
+import org.apache.lucene.spatial.strategy.util.BytesTermAttribute;
 import org.apache.lucene.spatial.strategy.util.CachedDistanceValueSource;
+import org.apache.lucene.spatial.strategy.util.ShapeFieldCache;
+import org.apache.lucene.spatial.strategy.util.ShapeFieldCacheProvider;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public abstract class PrefixTreeStrategy extends SpatialStrategy<SimpleSpatialFieldInfo> {
   protected final SpatialPrefixTree grid;
   private final Map<String, PointPrefixTreeFieldCacheProvider> provider = new ConcurrentHashMap<String, PointPrefixTreeFieldCacheProvider>();
   protected int defaultFieldValuesArrayLen = 2;
   protected double distErrPct = SpatialArgs.DEFAULT_DIST_PRECISION;
+  protected int maxCells = 0;
+  protected ExecutorService coveringExecutor;
+  protected int coveringParallelism;
+  protected boolean persistFieldCaches;
 
   public PrefixTreeStrategy(SpatialPrefixTree grid) {
     super(grid.getSpatialContext());
@@ -61,17 +73,58 @@ public abstract class PrefixTreeStrategy extends SpatialStrategy<SimpleSpatialFi
     this.distErrPct = distErrPct;
   }
 
+  /**
+   * A budget for the number of cells a shape is indexed with (and queried with, by strategies that enumerate the
+   * query shape's cells); see {@link SpatialPrefixTree#getNodes(Shape, int, boolean, int)}. Beyond it, the cells are
+   * coarsened, which trades precision for fewer terms. 0, the default, means no budget.
+   */
+  public void setMaxCells(int maxCells) {
+    this.maxCells = maxCells;
+  }
+
+  /**
+   * Finds the cells of large shapes in parallel, both to index them (except within a {@link #setMaxCells(int)} budget)
+   * and to query with them, by strategies that enumerate the query shape's cells; see
+   * {@link SpatialPrefixTree#getNodes(Shape, int, boolean, ExecutorService, int)}. Note that the cells to index are
+   * then all held in memory, instead of being found as they're indexed.
+   *
+   * @param executor    null to disable (the default)
+   * @param parallelism the maximum number of threads used per shape, including the calling thread
+   */
+  public void setCoveringExecutor(ExecutorService executor, int parallelism) {
+    this.coveringExecutor = executor;
+    this.coveringParallelism = parallelism;
+  }
+
+  /**
+   * Persists the caches the ValueSource reads to files next to the index, so that they're memory-mapped instead of
+   * rebuilt after a restart; see {@link PointPrefixTreeFieldCacheProvider#setPersistent(boolean)}. Off by default.
+   */
+  public void setPersistFieldCaches(boolean persistFieldCaches) {
+    this.persistFieldCaches = persistFieldCaches;
+    for (PointPrefixTreeFieldCacheProvider p : provider.values()) {
+      p.setPersistent(persistFieldCaches);
+    }
+  }
+
   @Override
   public IndexableField createField(SimpleSpatialFieldInfo fieldInfo, Shape shape, boolean index, boolean store) {
     int detailLevel = grid.getMaxLevelForPrecision(shape,distErrPct);
-    List<Node> cells = grid.getNodes(shape, detailLevel, true);//true=intermediates cells
+    //streamed, so that huge coverings needn't be held in memory; within a budget they're not huge
+    Iterator<Node> cells;//true=intermediates cells
+    if (maxCells > 0)
+      cells = grid.getNodes(shape, detailLevel, true, maxCells).iterator();
+    else if (coveringExecutor != null)
+      cells = grid.getNodes(shape, detailLevel, true, coveringExecutor, coveringParallelism).iterator();
+    else
+      cells = grid.getNodesIterator(shape, detailLevel, true);
     //If shape isn't a point, add a full-resolution center-point so that
     // PrefixFieldCacheProvider has the center-points.
     // TODO index each center of a multi-point? Yes/no?
     if (!(shape instanceof Point)) {
       Point ctr = shape.getCenter();
       //TODO should be smarter; don't index 2 tokens for this in CellTokenizer. Harmless though.
-      cells.add(grid.getNodes(ctr,grid.getMaxLevels(),false).get(0));
+      cells = append(cells, grid.getNodes(ctr,grid.getMaxLevels(),false).get(0));
     }
 
     String fname = fieldInfo.getFieldName();
@@ -80,19 +133,46 @@ public abstract class PrefixTreeStrategy extends SpatialStrategy<SimpleSpatialFi
       String wkt = grid.getSpatialContext().toString(shape);
       if( index ) {
         Field f = new Field(fname,wkt,TYPE_STORED);
-        f.setTokenStream(new CellTokenStream(cells.iterator()));
+        f.setTokenStream(new CellTokenStream(cells));
         return f;
       }
       return new StoredField(fname,wkt);
     }
     
     if( index ) {
-      return new Field(fname,new CellTokenStream(cells.iterator()),TYPE_UNSTORED);
+      return new Field(fname,new CellTokenStream(cells),TYPE_UNSTORED);
     }
     
     throw new UnsupportedOperationException("Fields need to be indexed or store ["+fname+"]");
   }
 
+  /** Returns an iterator of the cells followed by the last one. */
+  private static Iterator<Node> append(final Iterator<Node> cells, final Node last) {
+    return new Iterator<Node>() {
+      private boolean lastReturned = false;
+
+      @Override
+      public boolean hasNext() {
+        return cells.hasNext() || !lastReturned;
+      }
+
+      @Override
+      public Node next() {
+        if (cells.hasNext())
+          return cells.next();
+        if (lastReturned)
+          throw new NoSuchElementException();
+        lastReturned = true;
+        return last;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
   /* Indexed, tokenized, not stored. */
   public static final FieldType TYPE_UNSTORED = new FieldType();
 
@@ -112,10 +192,13 @@ public abstract class PrefixTreeStrategy extends SpatialStrategy<SimpleSpatialFi
     TYPE_STORED.freeze();
   }
 
-  /** Outputs the tokenString of a cell, and if its a leaf, outputs it again with the leaf byte. */
+  /**
+   * Outputs the token of a cell, and if its a leaf, outputs it again with the leaf byte. The token bytes are written
+   * straight into a {@link BytesTermAttribute}, so no String is made nor encoded to UTF-8.
+   */
   final static class CellTokenStream extends TokenStream {
 
-    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final BytesTermAttribute termAtt = addAttribute(BytesTermAttribute.class);
 
     private Iterator<Node> iter = null;
 
@@ -123,28 +206,36 @@ public abstract class PrefixTreeStrategy extends SpatialStrategy<SimpleSpatialFi
       this.iter = tokens;
     }
 
-    CharSequence nextTokenStringNeedingLeaf = null;
+    private Node nextCellNeedingLeaf = null;
 
     @Override
     public boolean incrementToken() throws IOException {
       clearAttributes();
-      if (nextTokenStringNeedingLeaf != null) {
-        termAtt.append(nextTokenStringNeedingLeaf);
-        termAtt.append((char) Node.LEAF_BYTE);
-        nextTokenStringNeedingLeaf = null;
+      if (nextCellNeedingLeaf != null) {
+        final int len = copyToken(nextCellNeedingLeaf, 1);
+        BytesRef bytes = termAtt.getBytesRef();
+        bytes.bytes[len] = Node.LEAF_BYTE;
+        bytes.length = len + 1;
+        nextCellNeedingLeaf = null;
         return true;
       }
       if (iter.hasNext()) {
         Node cell = iter.next();
-        CharSequence token = cell.getTokenString();
-        termAtt.append(token);
+        termAtt.getBytesRef().length = copyToken(cell, 0);
         if (cell.isLeaf())
-          nextTokenStringNeedingLeaf = token;
+          nextCellNeedingLeaf = cell;
         return true;
       }
       return false;
     }
 
+    /** Copies the cell's token to the term, with room for extra bytes after it. */
+    private int copyToken(Node cell, int extra) {
+      BytesRef bytes = termAtt.getBytesRef();
+      bytes.grow(cell.getTokenLength() + extra);
+      return cell.copyTokenBytes(bytes.bytes, 0);
+    }
+
   }
 
   @Override
@@ -154,18 +245,33 @@ public abstract class PrefixTreeStrategy extends SpatialStrategy<SimpleSpatialFi
   }
   
   public ValueSource makeValueSource(SpatialArgs args, SimpleSpatialFieldInfo fieldInfo, DistanceCalculator calc) {
+    Point point = args.getShape().getCenter();
+    return new CachedDistanceValueSource(point, calc, getCacheProvider(fieldInfo));
+  }
+
+  /**
+   * Builds on the executor the caches the ValueSource reads, for the segments of the reader that don't have them yet,
+   * so that the first query against a reopened reader needn't; see
+   * {@link ShapeFieldCacheProvider#warm(IndexReader, Executor)}.
+   */
+  public List<Future<ShapeFieldCache<Point>>> warmFieldCache(SimpleSpatialFieldInfo fieldInfo, IndexReader reader,
+                                                            Executor executor) {
+    return getCacheProvider(fieldInfo).warm(reader, executor);
+  }
+
+  private PointPrefixTreeFieldCacheProvider getCacheProvider(SimpleSpatialFieldInfo fieldInfo) {
     PointPrefixTreeFieldCacheProvider p = provider.get( fieldInfo.getFieldName() );
     if( p == null ) {
       synchronized (this) {//double checked locking idiom is okay since provider is threadsafe
         p = provider.get( fieldInfo.getFieldName() );
         if (p == null) {
           p = new PointPrefixTreeFieldCacheProvider(grid, fieldInfo.getFieldName(), defaultFieldValuesArrayLen);
+          p.setPersistent(persistFieldCaches);
           provider.put(fieldInfo.getFieldName(),p);
         }
       }
     }
-    Point point = args.getShape().getCenter();
-    return new CachedDistanceValueSource(point, calc, p);
+    return p;
   }
 
   public SpatialPrefixTree getGrid() {
@@ -21,17 +21,32 @@ import org.apache.lucene.index.*;
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.spatial.base.shape.ClippableShape;
+import org.apache.lucene.spatial.base.shape.Point;
+import org.apache.lucene.spatial.base.shape.Rectangle;
 import org.apache.lucene.spatial.base.shape.SpatialRelation;
 import org.apache.lucene.spatial.base.prefix.Node;
 import org.apache.lucene.spatial.base.prefix.SpatialPrefixTree;
 import org.apache.lucene.spatial.base.shape.Shape;
+import org.apache.lucene.spatial.strategy.util.DocIdSetBuilder;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.OpenBitSet;
-import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.ThreadInterruptedException;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Performs a spatial intersection filter against a field indexed with {@link SpatialPrefixTree}, a Trie.
@@ -39,126 +54,632 @@ import java.util.LinkedList;
  * This filter recursively traverses each grid length and uses methods on {@link Shape} to efficiently know
  * that all points at a prefix fit in the shape or not to either short-circuit unnecessary traversals or to efficiently
  * load all enclosed points.
+ * <p/>
+ * The resulting {@link DocIdSet} is built by a {@link DocIdSetBuilder}, so a sparse result is a sorted int[] of doc
+ * ids instead of a bitset of maxDoc bits.
+ * <p/>
+ * If the query shape is a {@link ClippableShape}, it's clipped to each cell that is divided or scanned, so that the
+ * relate() calls beneath that cell are against a simpler shape.
+ * <p/>
+ * Optionally (see {@link #setLazy(boolean)}) the result isn't materialized; its iterator traverses the cells and
+ * merges the postings of the matching terms on demand.
+ * <p/>
+ * The work done on each segment can be reported to a {@link TraversalStatsSink}; see
+ * {@link #setStatsSink(TraversalStatsSink)}.
  */
 public class RecursivePrefixTreeFilter extends Filter {
 
-  /* TODOs for future:
-
-Can a polygon query shape be optimized / made-simpler at recursive depths (e.g. intersection of shape + cell box)
-
-RE "scan" threshold:
-  // IF configured to do so, we could use term.freq() as an estimate on the number of places at this depth.  OR, perhaps
-  //  make estimates based on the total known term count at this level?
-  if (!scan) {
-    //Make some estimations on how many points there are at this level and how few there would need to be to set
-    // !scan to false.
-    long termsThreshold = (long) estimateNumberIndexedTerms(cell.length(),queryShape.getDocFreqExpenseThreshold(cell));
-    long thisOrd = termsEnum.ord();
-    scan = (termsEnum.seek(thisOrd+termsThreshold+1) == TermsEnum.SeekStatus.END
-            || !cell.contains(termsEnum.term()));
-    termsEnum.seek(thisOrd);//return to last position
-  }
-
-  */
-
   private final String fieldName;
   private final SpatialPrefixTree grid;
   private final Shape queryShape;
   private final int prefixGridScanLevel;//at least one less than grid.getMaxLevels()
   private final int detailLevel;
+  private final int scanTermsThreshold;//<= 0 to use prefixGridScanLevel alone
+
+  //optional parallel traversal; doesn't affect the results and so isn't part of equals/hashCode
+  private ExecutorService executor;
+  private int parallelism;
+  //optional lazy DocIdSet; also not part of equals/hashCode
+  private boolean lazy;
+  private TraversalStatsSink statsSink;
 
   public RecursivePrefixTreeFilter(String fieldName, SpatialPrefixTree grid, Shape queryShape, int prefixGridScanLevel,
                              int detailLevel) {
+    this(fieldName, grid, queryShape, prefixGridScanLevel, detailLevel, 0);
+  }
+
+  /**
+   * @param scanTermsThreshold If > 0, the decision to scan the terms beneath a cell instead of dividing it is made per
+   *                           cell from index statistics: the cell is scanned when an estimate of the number of terms
+   *                           beneath it is no more than this. prefixGridScanLevel is then unused. If <= 0, cells at
+   *                           or beyond prefixGridScanLevel are scanned.
+   */
+  public RecursivePrefixTreeFilter(String fieldName, SpatialPrefixTree grid, Shape queryShape, int prefixGridScanLevel,
+                             int detailLevel, int scanTermsThreshold) {
     this.fieldName = fieldName;
     this.grid = grid;
     this.queryShape = queryShape;
     this.prefixGridScanLevel = Math.max(1,Math.min(prefixGridScanLevel,grid.getMaxLevels()-1));
     this.detailLevel = detailLevel;
+    this.scanTermsThreshold = scanTermsThreshold;
     assert detailLevel <= grid.getMaxLevels();
   }
 
+  /**
+   * Opts in to traversing each segment with up to parallelism threads: the top-level cells intersecting the query
+   * shape are divided among the calling thread and tasks submitted to the executor. This helps large query shapes on
+   * big segments when there are idle cores. The executor should not be the one the search itself runs on, or its
+   * tasks may wait on each other.
+   *
+   * @param executor    null to disable (the default)
+   * @param parallelism the maximum number of threads used per segment, including the calling thread
+   */
+  public void setExecutor(ExecutorService executor, int parallelism) {
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Opts in to returning a DocIdSet that isn't materialized. Its iterator merges, in doc id order, the postings of the
+   * matching terms found so far with those of the cells not yet divided, which bound the docs beneath them (the
+   * parents of indexed cells are indexed too). A cell is only divided (or scanned) once the iterator reaches its first
+   * doc, and a cell whose docs are all before an advance() target is dropped without being divided. So a consumer that
+   * stops early, as in an existence check, or that advances, as in a conjunction with a selective query, saves most
+   * of the seeks, relate() calls and postings reads. Parallel traversal isn't used in this mode.
+   */
+  public void setLazy(boolean lazy) {
+    this.lazy = lazy;
+  }
+
+  /**
+   * Reports the {@link TraversalStats} of each segment to the sink, if not null (the default). In lazy mode they're
+   * reported when the iterator is exhausted, so not if the consumer stops early.
+   */
+  public void setStatsSink(TraversalStatsSink statsSink) {
+    this.statsSink = statsSink;
+  }
+
   @Override
   public DocIdSet getDocIdSet(AtomicReaderContext ctx, Bits acceptDocs) throws IOException {
+    final long startNanos = System.nanoTime();
     AtomicReader reader = ctx.reader();
-    OpenBitSet bits = new OpenBitSet(reader.maxDoc());
     Terms terms = reader.terms(fieldName);
     if (terms == null)
       return null;
-    TermsEnum termsEnum = terms.iterator(null);
-    DocsEnum docsEnum = null;//cached for termsEnum.docs() calls
-    Node scanCell = null;
-
-    //cells is treated like a stack. LinkedList conveniently has bulk add to beginning. It's in sorted order so that we
-    //  always advance forward through the termsEnum index.
-    LinkedList<Node> cells = new LinkedList<Node>(
-        grid.getWorldNode().getSubCells(queryShape) );
-
-    //This is a recursive algorithm that starts with one or more "big" cells, and then recursively dives down into the
-    // first such cell that intersects with the query shape.  It's a depth first traversal because we don't move onto
-    // the next big cell (breadth) until we're completely done considering all smaller cells beneath it. For a given
-    // cell, if it's *within* the query shape then we can conveniently short-circuit the depth traversal and
-    // grab all documents assigned to this cell/term.  For an intersection of the cell and query shape, we either
-    // recursively step down another grid level or we decide heuristically (via prefixGridScanLevel) that there aren't
-    // that many points, and so we scan through all terms within this cell (i.e. the term starts with the cell's term),
-    // seeing which ones are within the query shape.
-    while(!cells.isEmpty()) {
-      final Node cell = cells.removeFirst();
-      final BytesRef cellTerm = new BytesRef(cell.getTokenBytes());
-      TermsEnum.SeekStatus seekStat = termsEnum.seekCeil(cellTerm);
-      if (seekStat == TermsEnum.SeekStatus.END)
-        break;
-      if (seekStat == TermsEnum.SeekStatus.NOT_FOUND)
-        continue;
-      if (cell.getLevel() == detailLevel || cell.isLeaf()) {
-        docsEnum = termsEnum.docs(acceptDocs, docsEnum, false);
-        addDocs(docsEnum,bits);
-      } else {//any other intersection
-        //If the next indexed term is the leaf marker, then add all of them
-        BytesRef nextCellTerm = termsEnum.next();
-        assert StringHelper.startsWith(nextCellTerm, cellTerm);
-        scanCell = grid.getNode(nextCellTerm.bytes, nextCellTerm.offset, nextCellTerm.length, scanCell);
-        if (scanCell.isLeaf()) {
-          docsEnum = termsEnum.docs(acceptDocs, docsEnum, false);
-          addDocs(docsEnum,bits);
-          termsEnum.next();//move pointer to avoid potential redundant addDocs() below
+    //the top cells are shared; their relations to the query shape are kept apart from them
+    final List<Node> topCells = new ArrayList<Node>();
+    final List<SpatialRelation> topRels = new ArrayList<SpatialRelation>();
+    grid.getWorldNode().addSubCells(queryShape, topCells, topRels);
+    if (lazy)
+      return new LazyDocIdSet(ctx, terms, acceptDocs, topCells, topRels);
+    Traversal traversal;
+    if (executor == null || parallelism < 2 || topCells.size() < 2) {
+      traversal = new Traversal(terms, acceptDocs, new DocIdSetBuilder(reader.maxDoc()));
+      traversal.visit(topCells, topRels);
+    } else {
+      traversal = collectInParallel(topCells, topRels, terms, acceptDocs, reader.maxDoc());
+    }
+    recordStats(ctx, traversal.stats, startNanos);
+    return traversal.docs.build();
+  }
+
+  private void recordStats(AtomicReaderContext ctx, TraversalStats stats, long startNanos) {
+    if (statsSink == null)
+      return;
+    if (!(queryShape instanceof Point))
+      stats.relatesByLevel[1] += grid.getWorldNode().getSubCellsSize();//to get the top cells
+    stats.elapsedNanos = System.nanoTime() - startNanos;
+    statsSink.record(this, ctx, stats);
+  }
+
+  /**
+   * Splits the top cells across up to {@link #parallelism} workers, one of which is the calling thread. Each worker
+   * has its own {@link Traversal} and claims the next unvisited top cell in sorted order until none remain, so each
+   * worker's TermsEnum still only moves forward. The workers' docs and stats are then merged into the calling
+   * thread's Traversal. If any worker fails, the others are interrupted and stop at their next cell.
+   */
+  private Traversal collectInParallel(List<Node> topCells, List<SpatialRelation> topRels, Terms terms,
+                                      Bits acceptDocs, int maxDoc) throws IOException {
+    final AtomicInteger nextCellIdx = new AtomicInteger();
+    final int numWorkers = Math.min(parallelism, topCells.size());
+    List<Future<Traversal>> futures = new ArrayList<Future<Traversal>>(numWorkers - 1);
+    boolean success = false;
+    try {
+      for (int i = 1; i < numWorkers; i++) {
+        futures.add(executor.submit(
+            new TraversalWorker(topCells, topRels, nextCellIdx, terms, acceptDocs, maxDoc, true)));
+      }
+      Traversal traversal =
+          new TraversalWorker(topCells, topRels, nextCellIdx, terms, acceptDocs, maxDoc, false).call();
+      for (Future<Traversal> future : futures) {
+        Traversal other = getResult(future);
+        traversal.docs.add(other.docs);
+        traversal.stats.add(other.stats);
+      }
+      success = true;
+      return traversal;
+    } finally {
+      if (!success) {//failed or interrupted; stop the workers before rethrowing
+        nextCellIdx.set(topCells.size());
+        for (Future<Traversal> future : futures) {
+          future.cancel(true);
+        }
+      }
+    }
+  }
+
+  private static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new ThreadInterruptedException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /** See {@link #setLazy(boolean)}. Each call to {@link #iterator()} traverses the cells again. */
+  private class LazyDocIdSet extends DocIdSet {
+    private final AtomicReaderContext ctx;
+    private final Terms terms;
+    private final Bits acceptDocs;
+    private final List<Node> topCells;
+    private final List<SpatialRelation> topRels;
+
+    LazyDocIdSet(AtomicReaderContext ctx, Terms terms, Bits acceptDocs, List<Node> topCells,
+                 List<SpatialRelation> topRels) {
+      this.ctx = ctx;
+      this.terms = terms;
+      this.acceptDocs = acceptDocs;
+      this.topCells = topCells;
+      this.topRels = topRels;
+    }
+
+    @Override
+    public DocIdSetIterator iterator() throws IOException {
+      return new LazyIterator(ctx, terms, acceptDocs, topCells, topRels);
+    }
+  }
+
+  /**
+   * An entry of {@link LazyIterator}'s queue: the postings of a matching term (or a scanned cell's matching docs), or
+   * those of a cell not yet divided, which are a superset of its matching docs.
+   */
+  private static class LazyEntry {
+    final DocIdSetIterator docs;
+    final Node cell;//null if docs all match
+    final Shape cellQueryShape;//the query shape clipped to the cell's parent
+    final int cellDocFreq;
+
+    LazyEntry(DocIdSetIterator docs, Node cell, Shape cellQueryShape, int cellDocFreq) {
+      this.docs = docs;
+      this.cell = cell;
+      this.cellQueryShape = cellQueryShape;
+      this.cellDocFreq = cellDocFreq;
+    }
+  }
+
+  /** Lowest doc first; on the same doc, matching docs before undivided cells so that they aren't divided needlessly. */
+  private static final Comparator<LazyEntry> LAZY_ENTRY_ORDER = new Comparator<LazyEntry>() {
+    @Override
+    public int compare(LazyEntry a, LazyEntry b) {
+      final int docA = a.docs.docID();
+      final int docB = b.docs.docID();
+      if (docA != docB)
+        return docA < docB ? -1 : 1;
+      if ((a.cell == null) != (b.cell == null))
+        return a.cell == null ? -1 : 1;
+      return 0;
+    }
+  };
+
+  /**
+   * See {@link #setLazy(boolean)}. The cells are visited in doc order instead of term order, so its TermsEnum seeks
+   * back and forth.
+   */
+  private class LazyIterator extends DocIdSetIterator {
+    private final AtomicReaderContext ctx;
+    private final Traversal traversal;//for its TermsEnum, stats, and buffers
+    private final int maxDoc;
+    private final PriorityQueue<LazyEntry> queue = new PriorityQueue<LazyEntry>(64, LAZY_ENTRY_ORDER);
+    private final long startNanos = System.nanoTime();
+    private int doc = -1;
+
+    LazyIterator(AtomicReaderContext ctx, Terms terms, Bits acceptDocs, List<Node> topCells,
+                 List<SpatialRelation> topRels) throws IOException {
+      this.ctx = ctx;
+      this.traversal = new Traversal(terms, acceptDocs, null);
+      this.maxDoc = ctx.reader().maxDoc();
+      for (int i = 0; i < topCells.size(); i++) {
+        addCell(topCells.get(i), queryShape, topRels.get(i), 0);
+      }
+    }
+
+    @Override
+    public int docID() {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      return advance(doc + 1);
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      if (doc == NO_MORE_DOCS)
+        return doc;
+      while (true) {
+        LazyEntry top = queue.peek();
+        if (top == null) {
+          recordStats(ctx, traversal.stats, startNanos);
+          return doc = NO_MORE_DOCS;
         }
+        if (top.docs.docID() < target) {
+          queue.poll();
+          if (top.docs.advance(target) != NO_MORE_DOCS)
+            queue.add(top);//else a cell is dropped without dividing it
+          continue;
+        }
+        if (top.cell == null)
+          return doc = top.docs.docID();
+        queue.poll();
+        divide(top, target);//adds its sub-cells and matching terms
+      }
+    }
 
-        //Decide whether to continue to divide & conquer, or whether it's time to scan through terms beneath this cell.
-        // Scanning is a performance optimization trade-off.
-        boolean scan = cell.getLevel() >= prefixGridScanLevel;//simple heuristic
-
-        if (!scan) {
-          //Divide & conquer
-          cells.addAll(0, cell.getSubCells(queryShape));//add to beginning
-        } else {
-          //Scan through all terms within this cell to see if they are within the queryShape. No seek()s.
-          for(BytesRef term = termsEnum.term(); term != null && StringHelper.startsWith(term,cellTerm); term = termsEnum.next()) {
-            scanCell = grid.getNode(term.bytes, term.offset, term.length, scanCell);
-            int termLevel = scanCell.getLevel();
-            if (termLevel > detailLevel)
-              continue;
-            if (termLevel == detailLevel || scanCell.isLeaf()) {
-              //TODO should put more thought into implications of box vs point
-              Shape cShape = termLevel == grid.getMaxLevels() ? scanCell.getCenter() : scanCell.getShape();
-              if(queryShape.relate(cShape, grid.getSpatialContext()) == SpatialRelation.DISJOINT)
-                continue;
-
-              docsEnum = termsEnum.docs(acceptDocs, docsEnum, false);
-              addDocs(docsEnum,bits);
+    /** Adds the docs at or after target, if any. */
+    private void add(DocIdSetIterator docs, Node cell, Shape cellQueryShape, int cellDocFreq, int target)
+        throws IOException {
+      if (docs != null && docs.advance(target) != NO_MORE_DOCS)
+        queue.add(new LazyEntry(docs, cell, cellQueryShape, cellDocFreq));
+    }
+
+    /** Like an iteration of {@link Traversal#visit(List, List)}'s loop, up to dividing or scanning the cell. */
+    private void addCell(Node cell, Shape cellQueryShape, SpatialRelation cellRel, int target) throws IOException {
+      final TermsEnum termsEnum = traversal.termsEnum;
+      if (!traversal.seekCell(cell))
+        return;
+      if (cell.getLevel() == detailLevel || cellRel == SpatialRelation.WITHIN) {
+        traversal.stats.leafHits++;
+        add(termsEnum.docs(traversal.acceptDocs, null, false), null, null, 0, target);
+        return;
+      }
+      final int cellDocFreq = termsEnum.docFreq();
+      DocsEnum cellDocs = termsEnum.docs(traversal.acceptDocs, null, false);
+      BytesRef nextCellTerm = termsEnum.next();
+      assert cell.isPrefixOf(nextCellTerm.bytes, nextCellTerm.offset, nextCellTerm.length);
+      traversal.scanCell = grid.getNode(nextCellTerm.bytes, nextCellTerm.offset, nextCellTerm.length, traversal.scanCell);
+      if (traversal.scanCell.isLeaf()) {
+        traversal.stats.leafHits++;
+        add(termsEnum.docs(traversal.acceptDocs, null, false), null, null, 0, target);
+      }
+      add(cellDocs, cell, cellQueryShape, cellDocFreq, target);
+    }
+
+    /** The rest of the loop's iteration for a cell added by {@link #addCell}. */
+    private void divide(LazyEntry entry, int target) throws IOException {
+      final TermsEnum termsEnum = traversal.termsEnum;
+      final Node cell = entry.cell;
+      if (!traversal.seekCell(cell))
+        throw new IllegalStateException("term gone: " + cell);
+      //position on the first term beneath the cell that isn't its leaf marker
+      BytesRef term = termsEnum.next();
+      if (term == null)
+        return;
+      traversal.scanCell = grid.getNode(term.bytes, term.offset, term.length, traversal.scanCell);
+      if (traversal.scanCell.isLeaf() && termsEnum.next() == null)
+        return;
+      final Shape cellQueryShape = clip(entry.cellQueryShape, cell);
+      if (isScanCheaper(cell, entry.cellDocFreq, termsEnum, traversal.numTerms, traversal.stats)) {
+        DocIdSetBuilder docs = new DocIdSetBuilder(maxDoc);
+        traversal.scan(cell, cellQueryShape, docs);
+        if (docs.size() > 0)
+          add(docs.build().iterator(), null, null, 0, target);
+        return;
+      }
+      List<Node> subCells = traversal.subCells;
+      List<SpatialRelation> subRels = traversal.subRels;
+      traversal.addSubCells(cell, cellQueryShape);
+      for (int i = 0; i < subCells.size(); i++) {
+        addCell(subCells.get(i), cellQueryShape, subRels.get(i), target);
+      }
+      subCells.clear();
+      subRels.clear();
+    }
+  }
+
+  /**
+   * The state of one depth-first traversal of a segment's terms: its own TermsEnum, DocsEnum, and collected docs.
+   * The cell stack and term buffers are reused from cell to cell (and across {@link #visit(List, List)} calls) so the
+   * traversal doesn't allocate per cell beyond the sub-cells themselves.
+   * Not threadsafe; parallel traversal uses one per worker.
+   */
+  private class Traversal {
+    private final TermsEnum termsEnum;
+    private final Bits acceptDocs;
+    private final DocIdSetBuilder docs;//null in lazy mode
+    private final boolean interruptible;//checks for interruption between cells; for workers on other threads
+    private final TraversalStats stats = new TraversalStats(grid.getMaxLevels());//cheap enough to always keep
+    private final long numTerms;//for isScanCheaper()
+    private DocsEnum docsEnum = null;//cached for termsEnum.docs() calls
+    private Node scanCell = null;
+
+    //cells yet to visit; the top of the stack is the end of the array and the next cell in sorted order so that
+    //  we always advance forward through the termsEnum index. shapeStack has the query shape clipped to each cell's
+    //  parent, and relStack each cell's relation to that shape, parallel to cellStack. Cells aren't modified since
+    //  the top ones are shared.
+    private Node[] cellStack = new Node[32];
+    private Shape[] shapeStack = new Shape[32];
+    private SpatialRelation[] relStack = new SpatialRelation[32];
+    private int cellStackSize = 0;
+    private final List<Node> subCells = new ArrayList<Node>();//reused by addSubCells()
+    private final List<SpatialRelation> subRels = new ArrayList<SpatialRelation>();//reused by addSubCells()
+    private final BytesRef cellTerm = new BytesRef();
+
+    Traversal(Terms terms, Bits acceptDocs, DocIdSetBuilder docs) throws IOException {
+      this(terms, acceptDocs, docs, false);
+    }
+
+    Traversal(Terms terms, Bits acceptDocs, DocIdSetBuilder docs, boolean interruptible) throws IOException {
+      this.termsEnum = terms.iterator(null);
+      this.acceptDocs = acceptDocs;
+      this.docs = docs;
+      this.interruptible = interruptible;
+      //Seeking by ordinal is optional; find out once per segment (-1 means unknown) for isScanCheaper().
+      this.numTerms = scanTermsThreshold > 0 ? numTermsIfOrdsSupported(terms, termsEnum) : -1;
+    }
+
+    private void push(Node cell, Shape cellQueryShape, SpatialRelation rel) {
+      if (cellStackSize == cellStack.length) {
+        int newLength = ArrayUtil.oversize(cellStackSize + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+        cellStack = Arrays.copyOf(cellStack, newLength);
+        shapeStack = Arrays.copyOf(shapeStack, newLength);
+        relStack = Arrays.copyOf(relStack, newLength);
+      }
+      cellStack[cellStackSize] = cell;
+      shapeStack[cellStackSize] = cellQueryShape;
+      relStack[cellStackSize] = rel;
+      cellStackSize++;
+    }
+
+    /** Pushes the given sorted cells, with their relations, such that the first is on top. */
+    private void pushAll(List<Node> cells, List<SpatialRelation> rels, Shape cellsQueryShape) {
+      for (int i = cells.size() - 1; i >= 0; i--) {
+        push(cells.get(i), cellsQueryShape, rels.get(i));
+      }
+    }
+
+    private void clearStack() {
+      Arrays.fill(cellStack, 0, cellStackSize, null);
+      Arrays.fill(shapeStack, 0, cellStackSize, null);
+      Arrays.fill(relStack, 0, cellStackSize, null);
+      cellStackSize = 0;
+    }
+
+    /**
+     * Adds the docs beneath the given cells (sorted, non-overlapping) that match the query shape, given each cell's
+     * relation to it.
+     */
+    void visit(List<Node> startCells, List<SpatialRelation> startRels) throws IOException {
+      pushAll(startCells, startRels, queryShape);
+
+      //This is a recursive algorithm that starts with one or more "big" cells, and then recursively dives down into the
+      // first such cell that intersects with the query shape.  It's a depth first traversal because we don't move onto
+      // the next big cell (breadth) until we're completely done considering all smaller cells beneath it. For a given
+      // cell, if it's *within* the query shape then we can conveniently short-circuit the depth traversal and
+      // grab all documents assigned to this cell/term.  For an intersection of the cell and query shape, we either
+      // recursively step down another grid level or we decide (via isScanCheaper()) that there aren't that many
+      // points, and so we scan through all terms within this cell (i.e. the term is beneath the cell; usually it starts with the cell's term),
+      // seeing which ones are within the query shape.
+      while(cellStackSize > 0) {
+        if (interruptible && Thread.interrupted()) {
+          clearStack();
+          throw new ThreadInterruptedException(new InterruptedException());
+        }
+        --cellStackSize;
+        final Node cell = cellStack[cellStackSize];
+        Shape cellQueryShape = shapeStack[cellStackSize];
+        final SpatialRelation cellRel = relStack[cellStackSize];
+        cellStack[cellStackSize] = null;//don't retain them
+        shapeStack[cellStackSize] = null;
+        relStack[cellStackSize] = null;
+        TermsEnum.SeekStatus seekStat = seekCeil(cell);
+        if (seekStat == TermsEnum.SeekStatus.END) {
+          clearStack();
+          break;
+        }
+        if (seekStat == TermsEnum.SeekStatus.NOT_FOUND)
+          continue;
+        if (cell.getLevel() == detailLevel || cellRel == SpatialRelation.WITHIN) {
+          collectDocs(docs);
+        } else {//any other intersection
+          final int cellDocFreq = termsEnum.docFreq();
+          //If the next indexed term is the leaf marker, then add all of them
+          BytesRef nextCellTerm = termsEnum.next();
+          assert cell.isPrefixOf(nextCellTerm.bytes, nextCellTerm.offset, nextCellTerm.length);
+          scanCell = grid.getNode(nextCellTerm.bytes, nextCellTerm.offset, nextCellTerm.length, scanCell);
+          if (scanCell.isLeaf()) {
+            collectDocs(docs);
+            if (termsEnum.next() == null) {//move pointer to avoid potential redundant addDocs() below
+              clearStack();
+              break;//no more terms at all
             }
-          }//term loop
+          }
+
+          //Decide whether to continue to divide & conquer, or whether it's time to scan through terms beneath this cell.
+          // Scanning is a performance optimization trade-off.
+          boolean scan = isScanCheaper(cell, cellDocFreq, termsEnum, numTerms, stats);
+          cellQueryShape = clip(cellQueryShape, cell);
+
+          if (!scan) {
+            //Divide & conquer
+            addSubCells(cell, cellQueryShape);
+            pushAll(subCells, subRels, cellQueryShape);
+            subCells.clear();
+            subRels.clear();
+          } else {
+            scan(cell, cellQueryShape, docs);
+          }
         }
+      }//cell loop
+    }
+
+    /** Seeks to the cell's term, or the one after it. */
+    private TermsEnum.SeekStatus seekCeil(Node cell) throws IOException {
+      cellTerm.grow(cell.getTokenLength());//reuses cellTerm's byte[]; no String per cell
+      cellTerm.length = cell.copyTokenBytes(cellTerm.bytes, 0);
+      stats.seeks++;
+      return termsEnum.seekCeil(cellTerm);
+    }
+
+    /** Seeks to the cell's term; returns false if it isn't indexed. */
+    private boolean seekCell(Node cell) throws IOException {
+      return seekCeil(cell) == TermsEnum.SeekStatus.FOUND;
+    }
+
+    /**
+     * Scans through all terms within the cell, from the current one, to see if they are within the query shape, and
+     * collects their docs. No seek()s.
+     */
+    private void scan(Node cell, Shape cellQueryShape, DocIdSetBuilder docs) throws IOException {
+      for(BytesRef term = termsEnum.term(); term != null && cell.isPrefixOf(term.bytes, term.offset, term.length); term = termsEnum.next()) {
+        stats.termsScanned++;
+        scanCell = grid.getNode(term.bytes, term.offset, term.length, scanCell);
+        int termLevel = scanCell.getLevel();
+        if (termLevel > detailLevel)
+          continue;
+        if (termLevel == detailLevel || scanCell.isLeaf()) {
+          //TODO should put more thought into implications of box vs point
+          Shape cShape = termLevel == grid.getMaxLevels() ? scanCell.getCenter() : scanCell.getShape();
+          stats.relatesByLevel[termLevel]++;
+          if(cellQueryShape.relate(cShape, grid.getSpatialContext()) == SpatialRelation.DISJOINT)
+            continue;
+
+          collectDocs(docs);
+        }
+      }//term loop
+    }
+
+    /** Collects the docs of the current term. */
+    private void collectDocs(DocIdSetBuilder docs) throws IOException {
+      stats.leafHits++;
+      docsEnum = termsEnum.docs(acceptDocs, docsEnum, false);
+      stats.postingsDocs += docs.add(docsEnum);
+    }
+
+    /** Fills subCells and subRels with the cell's sub-cells that intersect the shape; the caller clears them. */
+    private void addSubCells(Node cell, Shape cellQueryShape) {
+      subCells.clear();
+      subRels.clear();
+      cell.addSubCells(cellQueryShape, subCells, subRels);
+      if (!(cellQueryShape instanceof Point))
+        stats.relatesByLevel[cell.getLevel() + 1] += cell.getSubCellsSize();
+    }
+  }
+
+  /**
+   * Runs a {@link Traversal} over top cells claimed from a shared counter. If interruptible, as when run by the
+   * executor, it throws a {@link ThreadInterruptedException} at the next cell once its thread is interrupted.
+   */
+  private class TraversalWorker implements Callable<Traversal> {
+    private final List<Node> topCells;
+    private final List<SpatialRelation> topRels;
+    private final AtomicInteger nextCellIdx;
+    private final Terms terms;
+    private final Bits acceptDocs;
+    private final int maxDoc;
+    private final boolean interruptible;
+
+    TraversalWorker(List<Node> topCells, List<SpatialRelation> topRels, AtomicInteger nextCellIdx, Terms terms,
+                    Bits acceptDocs, int maxDoc, boolean interruptible) {
+      this.topCells = topCells;
+      this.topRels = topRels;
+      this.nextCellIdx = nextCellIdx;
+      this.terms = terms;
+      this.acceptDocs = acceptDocs;
+      this.maxDoc = maxDoc;
+      this.interruptible = interruptible;
+    }
+
+    @Override
+    public Traversal call() throws IOException {
+      Traversal traversal = new Traversal(terms, acceptDocs, new DocIdSetBuilder(maxDoc), interruptible);
+      int i;
+      while ((i = nextCellIdx.getAndIncrement()) < topCells.size()) {
+        traversal.visit(Collections.singletonList(topCells.get(i)), Collections.singletonList(topRels.get(i)));
       }
-    }//cell loop
+      return traversal;
+    }
+  }
 
-    return bits;
+  /** Returns the query shape clipped to an intersecting cell, or the same shape if it's not a {@link ClippableShape}. */
+  private Shape clip(Shape cellQueryShape, Node cell) {
+    if (!(cellQueryShape instanceof ClippableShape))
+      return cellQueryShape;
+    Shape cellShape = cell.getShape();
+    if (!(cellShape instanceof Rectangle))
+      return cellQueryShape;
+    return ((ClippableShape) cellQueryShape).clip((Rectangle) cellShape, grid.getSpatialContext());
+  }
+
+  /**
+   * Decides whether scanning the terms beneath the cell is cheaper than dividing it into sub-cells and seeking to
+   * each one. Dividing costs a seek and a relate() per intersecting sub-cell; scanning costs a next() and at most one
+   * relate() per term. So scan when the estimated number of terms beneath the cell is under
+   * {@link #scanTermsThreshold}.
+   * <p/>
+   * The estimate first comes from the docFreq of the cell's term: each point indexed beneath the cell contributes at
+   * most one term per remaining level (plus its leaf marker), so this is an upper bound for points and a good guess
+   * otherwise. When that bound is too high to decide, and the codec supports ordinals, the terms dictionary is probed
+   * {@link #scanTermsThreshold} terms ahead to see if it is still beneath the cell.
+   *
+   * @param termsEnum Positioned on the first term beneath the cell. It is returned to the same position.
+   * @param numTerms  The number of terms in the field if seeking by ordinal is supported, otherwise -1.
+   * @param stats     Counts the probe's seeks.
+   */
+  private boolean isScanCheaper(Node cell, int cellDocFreq, TermsEnum termsEnum, long numTerms, TraversalStats stats)
+      throws IOException {
+    if (scanTermsThreshold <= 0)
+      return cell.getLevel() >= prefixGridScanLevel;//simple heuristic
+    long maxTermsPerDoc = grid.getMaxLevels() - cell.getLevel() + 1;
+    if ((long) cellDocFreq * maxTermsPerDoc <= scanTermsThreshold)
+      return true;
+    if (numTerms < 0)
+      return false;//dense, and we can't find out more cheaply
+    long thisOrd = termsEnum.ord();
+    long probeOrd = thisOrd + scanTermsThreshold;
+    if (probeOrd >= numTerms)
+      return true;//fewer than scanTermsThreshold terms remain in the whole field
+    termsEnum.seekExact(probeOrd);
+    BytesRef probeTerm = termsEnum.term();
+    boolean scan = !cell.isPrefixOf(probeTerm.bytes, probeTerm.offset, probeTerm.length);
+    termsEnum.seekExact(thisOrd);//return to last position
+    stats.seeks += 2;
+    return scan;
   }
 
-  private void addDocs(DocsEnum docsEnum, OpenBitSet bits) throws IOException {
-    int docid;
-    while ((docid = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
-      bits.fastSet(docid);
+  /**
+   * Returns {@link Terms#size()} if the terms can be sought by ordinal, otherwise -1. termsEnum is left positioned
+   * on the first term.
+   */
+  private static long numTermsIfOrdsSupported(Terms terms, TermsEnum termsEnum) throws IOException {
+    long numTerms = terms.size();
+    if (numTerms <= 0 || termsEnum.next() == null)
+      return -1;
+    try {
+      termsEnum.ord();
+    } catch (UnsupportedOperationException e) {
+      return -1;
     }
+    return numTerms;
   }
 
   @Override
@@ -176,6 +697,7 @@ RE "scan" threshold:
     if (!fieldName.equals(that.fieldName)) return false;
     //note that we don't need to look at grid since for the same field it should be the same
     if (prefixGridScanLevel != that.prefixGridScanLevel) return false;
+    if (scanTermsThreshold != that.scanTermsThreshold) return false;
     if (detailLevel != that.detailLevel) return false;
     if (!queryShape.equals(that.queryShape)) return false;
 
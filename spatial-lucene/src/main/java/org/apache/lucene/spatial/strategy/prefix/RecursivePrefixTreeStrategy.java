@@ -28,24 +28,69 @@ import org.apache.lucene.spatial.base.query.SpatialArgs;
 import org.apache.lucene.spatial.base.query.SpatialOperation;
 import org.apache.lucene.spatial.base.shape.Shape;
 import org.apache.lucene.spatial.strategy.SimpleSpatialFieldInfo;
+import org.apache.lucene.spatial.strategy.util.SpatialFilterCache;
+
+import java.util.concurrent.ExecutorService;
 
 
 public class RecursivePrefixTreeStrategy extends PrefixTreeStrategy {
 
   private int prefixGridScanLevel;//TODO how is this customized?
+  private int scanTermsThreshold;
+  private ExecutorService executor;
+  private int parallelism;
+  private boolean lazyFilter;
+  private TraversalStatsSink statsSink;
+  private SpatialFilterCache filterCache;
 
   public RecursivePrefixTreeStrategy(SpatialPrefixTree grid) {
     super(grid);
     prefixGridScanLevel = grid.getMaxLevels() - 4;//TODO this default constant is dependent on the prefix grid size
   }
 
+  /**
+   * Cells at or beyond this level are scanned instead of divided. Ignored once {@link #setScanTermsThreshold(int)} is
+   * set to > 0, which replaces this fixed level with a per-cell decision; the two don't combine.
+   */
   public void setPrefixGridScanLevel(int prefixGridScanLevel) {
     this.prefixGridScanLevel = prefixGridScanLevel;
   }
 
+  /**
+   * When > 0, {@link RecursivePrefixTreeFilter} decides per cell whether to scan or divide using term statistics,
+   * scanning cells estimated to hold no more than this many terms. <= 0 uses {@link #setPrefixGridScanLevel(int)}
+   * instead, which is the default. Scanning a few terms per sub-cell of the grid (e.g. 4 times
+   * {@code grid.getWorldNode().getSubCellsSize()}) is about as costly as seeking to each sub-cell.
+   */
+  public void setScanTermsThreshold(int scanTermsThreshold) {
+    this.scanTermsThreshold = scanTermsThreshold;
+  }
+
+  /** See {@link RecursivePrefixTreeFilter#setExecutor(java.util.concurrent.ExecutorService, int)}. */
+  public void setExecutor(ExecutorService executor, int parallelism) {
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /** See {@link RecursivePrefixTreeFilter#setLazy(boolean)}. */
+  public void setLazyFilter(boolean lazyFilter) {
+    this.lazyFilter = lazyFilter;
+  }
+
+  /** See {@link RecursivePrefixTreeFilter#setStatsSink(TraversalStatsSink)}. */
+  public void setStatsSink(TraversalStatsSink statsSink) {
+    this.statsSink = statsSink;
+  }
+
+  /** Filters made by this strategy get their per-segment results from this cache, if not null. */
+  public void setFilterCache(SpatialFilterCache filterCache) {
+    this.filterCache = filterCache;
+  }
+
   @Override
   public String toString() {
-    return getClass().getSimpleName()+"(prefixGridScanLevel:"+prefixGridScanLevel+",SPG:("+ grid +"))";
+    return getClass().getSimpleName()+"(prefixGridScanLevel:"+prefixGridScanLevel+
+        ",scanTermsThreshold:"+scanTermsThreshold+",SPG:("+ grid +"))";
   }
 
   @Override
@@ -66,8 +111,12 @@ public class RecursivePrefixTreeStrategy extends PrefixTreeStrategy {
 
     int detailLevel = grid.getMaxLevelForPrecision(qshape,args.getDistPrecision());
 
-    return new RecursivePrefixTreeFilter(
-        fieldInfo.getFieldName(), grid,qshape, prefixGridScanLevel, detailLevel);
+    RecursivePrefixTreeFilter filter = new RecursivePrefixTreeFilter(
+        fieldInfo.getFieldName(), grid,qshape, prefixGridScanLevel, detailLevel, scanTermsThreshold);
+    filter.setExecutor(executor, parallelism);
+    filter.setLazy(lazyFilter);
+    filter.setStatsSink(statsSink);
+    return filterCache != null ? filterCache.wrap(filter) : filter;
   }
 }
 
@@ -50,7 +50,8 @@ public class TermQueryPrefixTreeStrategy extends PrefixTreeStrategy {
     }
     Shape qshape = args.getShape();
     int detailLevel = grid.getMaxLevelForPrecision(qshape, args.getDistPrecision());
-    List<Node> cells = grid.getNodes(qshape, detailLevel, false);
+    List<Node> cells = grid.getQueryNodes(qshape, detailLevel, false, maxCells,
+        coveringExecutor, coveringParallelism);
 
     BooleanQuery booleanQuery = new BooleanQuery();
     for (Node cell : cells) {
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.prefix;
+
+import java.util.Arrays;
+
+/**
+ * Counters describing the work {@link RecursivePrefixTreeFilter} did to get the matching docs of one segment, for
+ * finding out why a query is slow and for tuning the scan level and precision from real queries. They are reported
+ * to a {@link TraversalStatsSink}.
+ * <p/>
+ * Not threadsafe.
+ */
+public class TraversalStats {
+
+  long seeks;
+  long termsScanned;
+  final long[] relatesByLevel;//index is the level of the cell related to the query shape
+  long leafHits;
+  long postingsDocs;
+  long elapsedNanos;
+
+  public TraversalStats(int maxLevels) {
+    this.relatesByLevel = new long[maxLevels + 1];
+  }
+
+  /**
+   * Adds the counts of another, such as one kept by another thread working on the same segment. The elapsed time
+   * isn't added since such work overlaps.
+   */
+  public void add(TraversalStats other) {
+    seeks += other.seeks;
+    termsScanned += other.termsScanned;
+    for (int i = 0; i < relatesByLevel.length && i < other.relatesByLevel.length; i++) {
+      relatesByLevel[i] += other.relatesByLevel[i];
+    }
+    leafHits += other.leafHits;
+    postingsDocs += other.postingsDocs;
+  }
+
+  /** The number of seeks on the terms dictionary, including those that probe ahead by ordinal. */
+  public long getSeeks() {
+    return seeks;
+  }
+
+  /** The number of terms stepped through while scanning beneath a cell instead of dividing it. */
+  public long getTermsScanned() {
+    return termsScanned;
+  }
+
+  /** The number of times the query shape was related to a cell (or its center) at the given level. */
+  public long getRelates(int level) {
+    return relatesByLevel[level];
+  }
+
+  public long getRelates() {
+    long sum = 0;
+    for (long relates : relatesByLevel) {
+      sum += relates;
+    }
+    return sum;
+  }
+
+  /** The number of matching terms whose postings were collected. */
+  public long getLeafHits() {
+    return leafHits;
+  }
+
+  /**
+   * The number of postings read, counting a doc once per matching term it's in. In lazy mode (see
+   * {@link RecursivePrefixTreeFilter#setLazy(boolean)}) postings read on demand aren't counted.
+   */
+  public long getPostingsDocs() {
+    return postingsDocs;
+  }
+
+  /** The time taken, in nanoseconds. */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "TraversalStats(seeks:" + seeks + ",termsScanned:" + termsScanned +
+        ",relatesByLevel:" + Arrays.toString(relatesByLevel) + ",leafHits:" + leafHits +
+        ",postingsDocs:" + postingsDocs + ",elapsedMs:" + elapsedNanos / 1000000 + ")";
+  }
+}
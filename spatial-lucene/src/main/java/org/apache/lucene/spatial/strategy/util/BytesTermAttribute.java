@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A term attribute whose bytes are written directly into {@link #getBytesRef()}, so there are no chars for the
+ * indexer to encode to UTF-8. It's for token streams of binary or ASCII terms that aren't analyzed further, since
+ * filters expecting a {@link org.apache.lucene.analysis.tokenattributes.CharTermAttribute} won't see the terms.
+ */
+public interface BytesTermAttribute extends TermToBytesRefAttribute {
+
+  /** Sets the term to a copy of the given bytes. */
+  void setBytes(byte[] bytes, int off, int len);
+
+  /**
+   * The term, to be written into directly (grow it as needed and set its length; the offset is 0). Cleared to
+   * length 0 by {@link org.apache.lucene.util.AttributeSource#clearAttributes()}.
+   */
+  @Override
+  BytesRef getBytesRef();
+}
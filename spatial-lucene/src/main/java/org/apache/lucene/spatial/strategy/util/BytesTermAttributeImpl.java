@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.AttributeImpl;
+import org.apache.lucene.util.AttributeReflector;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * The default implementation of {@link BytesTermAttribute}. It implements {@link TermToBytesRefAttribute} directly
+ * too, since attributes are found by the interfaces an implementation declares.
+ */
+public class BytesTermAttributeImpl extends AttributeImpl implements BytesTermAttribute, TermToBytesRefAttribute {
+
+  private BytesRef bytes = new BytesRef(16);
+
+  @Override
+  public void setBytes(byte[] b, int off, int len) {
+    bytes.grow(len);
+    System.arraycopy(b, off, bytes.bytes, 0, len);
+    bytes.length = len;
+  }
+
+  @Override
+  public BytesRef getBytesRef() {
+    return bytes;
+  }
+
+  @Override
+  public int fillBytesRef() {
+    return bytes.hashCode();//the bytes are already final
+  }
+
+  @Override
+  public void clear() {
+    bytes.length = 0;
+  }
+
+  @Override
+  public void copyTo(AttributeImpl target) {
+    BytesRef b = bytes;
+    ((BytesTermAttribute) target).setBytes(b.bytes, b.offset, b.length);
+  }
+
+  @Override
+  public BytesTermAttributeImpl clone() {
+    BytesTermAttributeImpl clone = (BytesTermAttributeImpl) super.clone();
+    clone.bytes = BytesRef.deepCopyOf(bytes);
+    return clone;
+  }
+
+  @Override
+  public void reflectWith(AttributeReflector reflector) {
+    reflector.reflect(TermToBytesRefAttribute.class, "bytes", BytesRef.deepCopyOf(bytes));
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other == this || (other instanceof BytesTermAttributeImpl
+        && bytes.equals(((BytesTermAttributeImpl) other).bytes));
+  }
+
+  @Override
+  public int hashCode() {
+    return bytes.hashCode();
+  }
+}
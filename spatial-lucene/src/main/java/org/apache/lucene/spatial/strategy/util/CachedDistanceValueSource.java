@@ -55,6 +55,8 @@ public class CachedDistanceValueSource extends ValueSource {
   public FunctionValues getValues(Map context, AtomicReaderContext readerContext) throws IOException {
     final ShapeFieldCache<Point> cache =
       provider.getCache(readerContext.reader());
+    if (cache instanceof PointFieldCache)
+      return new PointFunctionValues((PointFieldCache) cache);
 
     return new FunctionValues() {
       @Override
@@ -82,6 +84,38 @@ public class CachedDistanceValueSource extends ValueSource {
     };
   }
 
+  /** Reads only primitives. */
+  private class PointFunctionValues extends FunctionValues {
+    private final PointFieldCache cache;
+
+    PointFunctionValues(PointFieldCache cache) {
+      this.cache = cache;
+    }
+
+    @Override
+    public float floatVal(int doc) {
+      return (float) doubleVal(doc);
+    }
+
+    @Override
+    public double doubleVal(int doc) {
+      final int start = cache.getStart(doc);
+      final int end = cache.getEnd(doc);
+      if (start == end)
+        return Double.NaN; // ?? maybe max?
+      double v = calculator.distance(from, cache.getX(start), cache.getY(start));
+      for (int i = start + 1; i < end; i++) {
+        v = Math.min(v, calculator.distance(from, cache.getX(i), cache.getY(i)));
+      }
+      return v;
+    }
+
+    @Override
+    public String toString(int doc) {
+      return description() + "=" + floatVal(doc);
+    }
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (obj == null) { return false; }
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Collects the doc ids of one segment into a {@link DocIdSet}, choosing the representation based on how many there
+ * are. Doc ids are buffered in a growable int[] while there are few of them and are moved into an {@link OpenBitSet}
+ * once the number of distinct ones reaches a density threshold, so small result sets never pay for a bitset of maxDoc
+ * bits. Doc ids may be added in any order and more than once; when the buffer fills up (at twice the threshold) its
+ * duplicates are removed, so a doc reached through several cells counts once.
+ * <p/>
+ * Not threadsafe.
+ */
+public class DocIdSetBuilder {
+
+  private final int maxDoc;
+  private final int threshold;
+  private final int maxBufferSize;
+
+  private int[] buffer;
+  private int bufferSize;
+  private OpenBitSet bits;//null until the threshold is passed
+
+  private int size;//exact in bitset mode; in buffer mode it may include duplicates until build()
+
+  /** Uses a threshold of 1/128th of maxDoc, after which a bitset is both smaller and faster to build. */
+  public DocIdSetBuilder(int maxDoc) {
+    this(maxDoc, maxDoc >>> 7);
+  }
+
+  /**
+   * @param maxDoc    the segment's maxDoc; doc ids must be less than this.
+   * @param threshold the number of distinct buffered doc ids at which a bitset is used instead.
+   */
+  public DocIdSetBuilder(int maxDoc, int threshold) {
+    this.maxDoc = maxDoc;
+    this.threshold = threshold;
+    this.maxBufferSize = (int) Math.min(Integer.MAX_VALUE - 8, 2L * threshold);
+    this.buffer = new int[Math.max(1, Math.min(maxBufferSize, 32))];
+  }
+
+  public void add(int docId) {
+    if (bits != null) {
+      if (!bits.getAndSet(docId))
+        size++;
+      return;
+    }
+    if (bufferSize == maxBufferSize) {
+      //full; keeps at least as many free slots as it has distinct docs, so this is amortized
+      removeDuplicates();
+      if (bufferSize >= threshold)
+        upgradeToBitSet();
+      add(docId);
+      return;
+    }
+    if (bufferSize == buffer.length)
+      buffer = ArrayUtil.grow(buffer, Math.min(maxBufferSize, bufferSize + 1));
+    buffer[bufferSize++] = docId;
+    size++;
+  }
+
+  /**
+   * Adds all remaining docs of the iterator, which is typically a {@link org.apache.lucene.index.DocsEnum}.
+   *
+   * @return the number of docs read from the iterator
+   */
+  public int add(DocIdSetIterator iter) throws IOException {
+    int count = 0;
+    int docId;
+    while ((docId = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+      add(docId);
+      count++;
+    }
+    return count;
+  }
+
+  /** Adds all docs collected by another builder, such as one filled by another thread. */
+  public void add(DocIdSetBuilder other) {
+    if (other.bits != null) {
+      if (bits == null)
+        upgradeToBitSet();
+      bits.union(other.bits);
+      size = (int) bits.cardinality();
+    } else {
+      for (int i = 0; i < other.bufferSize; i++) {
+        add(other.buffer[i]);
+      }
+    }
+  }
+
+  private void upgradeToBitSet() {
+    bits = new OpenBitSet(maxDoc);
+    size = 0;
+    for (int i = 0; i < bufferSize; i++) {
+      if (!bits.getAndSet(buffer[i]))
+        size++;
+    }
+    buffer = null;
+    bufferSize = 0;
+  }
+
+  /** Sorts the buffer and removes its duplicates in-place. */
+  private void removeDuplicates() {
+    Arrays.sort(buffer, 0, bufferSize);
+    int len = 0;
+    for (int i = 0; i < bufferSize; i++) {
+      if (len == 0 || buffer[len - 1] != buffer[i])
+        buffer[len++] = buffer[i];
+    }
+    bufferSize = len;
+    size = len;
+  }
+
+  /**
+   * The number of docs collected so far. It's exact once {@link #build()} is called; before then it may count a
+   * doc more than once if it was added more than once while sparse.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the collected docs, either as a {@link SortedIntDocIdSet} or an {@link OpenBitSet}. Both report their
+   * size ({@link SortedIntDocIdSet#size()} and {@link OpenBitSet#cardinality()}).
+   */
+  public DocIdSet build() {
+    if (bits != null)
+      return bits;
+    removeDuplicates();
+    if (bufferSize >= threshold) {
+      upgradeToBitSet();
+      return bits;
+    }
+    return new SortedIntDocIdSet(buffer, bufferSize);
+  }
+}
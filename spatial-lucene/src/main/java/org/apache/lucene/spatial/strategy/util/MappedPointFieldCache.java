@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.spatial.base.shape.Point;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link PointFieldCache} read from a memory-mapped file, as written by {@link #write(PointFieldCache, File, String)},
+ * so that a segment's points needn't be decoded from its terms again, e.g. after a restart. The columns stay in the
+ * file; the OS pages them in as needed.
+ * <p/>
+ * The file has a header with a signature identifying what it was built from (the segment, field, grid...); a file whose
+ * signature differs is stale, as is one written in another byte order. Then come the document offsets, the x column
+ * and the y column, aligned and in the byte order of the platform that wrote them, so that they're read without
+ * swapping bytes. Files are limited to 2GB.
+ */
+public class MappedPointFieldCache extends PointFieldCache {
+
+  public static final String EXTENSION = ".points";
+
+  private static final int MAGIC = 0x50464332;//"PFC2"
+  private static final String CHARSET = "UTF-8";
+  private static final int BIG_ENDIAN = 0;
+  private static final int LITTLE_ENDIAN = 1;
+
+  private final IntBuffer docStarts;
+  private final DoubleBuffer xs;
+  private final DoubleBuffer ys;
+
+  private MappedPointFieldCache(int maxDoc, IntBuffer docStarts, DoubleBuffer xs, DoubleBuffer ys) {
+    super(maxDoc);
+    this.docStarts = docStarts;
+    this.xs = xs;
+    this.ys = ys;
+  }
+
+  /**
+   * Maps the file, or returns null if it doesn't exist, its signature differs or it's not in the platform's byte
+   * order.
+   *
+   * @throws IOException if it can't be read or is corrupt
+   */
+  public static MappedPointFieldCache open(File file, String signature) throws IOException {
+    if (!file.exists())
+      return null;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    ByteBuffer buf;
+    try {
+      final long length = raf.length();
+      if (length > Integer.MAX_VALUE)
+        throw new IOException("Too large: " + file);
+      buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);//remains valid once closed
+    } finally {
+      raf.close();
+    }
+    try {
+      if (buf.getInt() != MAGIC)
+        throw new IOException("Not a point cache file: " + file);
+      final int order = buf.getInt();
+      if (order != BIG_ENDIAN && order != LITTLE_ENDIAN)
+        throw new IOException("Corrupt point cache file: " + file);
+      if ((order == BIG_ENDIAN) != (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN))
+        return null;//e.g. copied from another platform; it's rebuilt rather than read byte-swapped
+      byte[] sigBytes = new byte[buf.getInt()];
+      buf.get(sigBytes);
+      if (!signature.equals(new String(sigBytes, CHARSET)))
+        return null;
+      final int maxDoc = buf.getInt();
+      final int numPoints = buf.getInt();
+      buf.position(align(buf.position()));
+      buf.order(ByteOrder.nativeOrder());
+      IntBuffer docStarts = slice(buf, 4 * (maxDoc + 1)).asIntBuffer();
+      buf.position(align(buf.position()));
+      DoubleBuffer xs = slice(buf, 8 * numPoints).asDoubleBuffer();
+      DoubleBuffer ys = slice(buf, 8 * numPoints).asDoubleBuffer();
+      if (docStarts.get(maxDoc) != numPoints)
+        throw new IOException("Corrupt point cache file: " + file);
+      return new MappedPointFieldCache(maxDoc, docStarts, xs, ys);
+    } catch (RuntimeException e) {//e.g. BufferUnderflowException, for a truncated file
+      throw new IOException("Corrupt point cache file: " + file, e);
+    }
+  }
+
+  /** The next len bytes, in the same byte order, after which the position is advanced. */
+  private static ByteBuffer slice(ByteBuffer buf, int len) {
+    ByteBuffer slice = buf.slice().order(buf.order());//slice() doesn't keep the order
+    slice.limit(len);
+    buf.position(buf.position() + len);
+    return slice;
+  }
+
+  private static int align(int pos) {
+    return (pos + 7) & ~7;
+  }
+
+  private static long align(long pos) {
+    return (pos + 7) & ~7L;
+  }
+
+  /**
+   * Writes the loaded cache to the file, replacing it, in the platform's byte order. It's written to a temporary file
+   * of its own first, and renamed, so that a reader never sees a partial file, nor do concurrent writers (e.g. of
+   * different processes) write to the same file.
+   *
+   * @return false if it's too large for a file
+   */
+  public static boolean write(PointFieldCache cache, File file, String signature) throws IOException {
+    return write(cache, file, signature, ByteOrder.nativeOrder());
+  }
+
+  static boolean write(PointFieldCache cache, File file, String signature, ByteOrder order) throws IOException {
+    final int maxDoc = cache.getMaxDoc();
+    final int numPoints = cache.size();
+    final byte[] sigBytes = signature.getBytes(CHARSET);
+    final long length = align(align(20 + sigBytes.length) + 4L * (maxDoc + 1)) + 16L * numPoints;
+    if (length > Integer.MAX_VALUE)
+      return false;
+
+    File tmpFile = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+    FileOutputStream out = new FileOutputStream(tmpFile);
+    boolean success = false;
+    try {
+      final FileChannel channel = out.getChannel();
+      final ByteBuffer buf = ByteBuffer.allocate(1 << 16);//the header is big-endian, as it says the columns' order
+      buf.putInt(MAGIC);
+      buf.putInt(order == ByteOrder.BIG_ENDIAN ? BIG_ENDIAN : LITTLE_ENDIAN);
+      buf.putInt(sigBytes.length);
+      flush(channel, buf);
+      channel.write(ByteBuffer.wrap(sigBytes));
+      buf.putInt(maxDoc);
+      buf.putInt(numPoints);
+      pad(channel, buf);
+      buf.order(order);
+      for (int doc = 0; doc < maxDoc; doc++) {
+        ensureRemaining(channel, buf, 4);
+        buf.putInt(cache.getStart(doc));
+      }
+      ensureRemaining(channel, buf, 4);
+      buf.putInt(numPoints);
+      pad(channel, buf);
+      for (int i = 0; i < numPoints; i++) {
+        ensureRemaining(channel, buf, 8);
+        buf.putDouble(cache.getX(i));
+      }
+      for (int i = 0; i < numPoints; i++) {
+        ensureRemaining(channel, buf, 8);
+        buf.putDouble(cache.getY(i));
+      }
+      flush(channel, buf);
+      success = true;
+    } finally {
+      if (success)
+        IOUtils.close(out);
+      else {
+        IOUtils.closeWhileHandlingException(out);
+        tmpFile.delete();
+      }
+    }
+    if (!tmpFile.renameTo(file)) {//on some platforms, it won't replace a file
+      if (!file.delete() || !tmpFile.renameTo(file)) {
+        tmpFile.delete();
+        throw new IOException("Couldn't rename " + tmpFile + " to " + file);
+      }
+    }
+    return true;
+  }
+
+  private static void ensureRemaining(FileChannel channel, ByteBuffer buf, int len) throws IOException {
+    if (buf.remaining() < len)
+      flush(channel, buf);
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+    buf.flip();
+    while (buf.hasRemaining())
+      channel.write(buf);
+    buf.clear();
+  }
+
+  /** Pads with zeros up to a multiple of 8 bytes from the start of the file. */
+  private static void pad(FileChannel channel, ByteBuffer buf) throws IOException {
+    ensureRemaining(channel, buf, 8);
+    while (((channel.position() + buf.position()) & 7) != 0)
+      buf.put((byte) 0);
+  }
+
+  @Override
+  public void add(int docid, Point p) {
+    throw new UnsupportedOperationException("Already loaded");
+  }
+
+  @Override
+  protected void finishLoading() {
+  }
+
+  @Override
+  public int getStart(int docid) {
+    return docStarts.get(docid);
+  }
+
+  @Override
+  public int getEnd(int docid) {
+    return docStarts.get(docid + 1);
+  }
+
+  @Override
+  public double getX(int idx) {
+    return xs.get(idx);
+  }
+
+  @Override
+  public double getY(int idx) {
+    return ys.get(idx);
+  }
+
+  @Override
+  public int size() {
+    return xs.capacity();
+  }
+}
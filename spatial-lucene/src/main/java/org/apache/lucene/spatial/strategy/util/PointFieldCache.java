@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.spatial.base.shape.Point;
+import org.apache.lucene.spatial.base.shape.simple.PointImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link ShapeFieldCache} of points stored in columns of primitives: the x and y of every point, grouped by
+ * document, and the offset of each document's points (compressed sparse row). A document's points are those from
+ * {@link #getStart(int)} up to {@link #getEnd(int)}, in the order they were added. Compared to a List of Point
+ * objects per document, this needs about a fifth of the memory and reading it doesn't chase pointers, which is what
+ * matters for sorting by distance.
+ * <p/>
+ * It's loaded from the number of points of each document, counted beforehand (e.g. from the postings), so that
+ * {@link #add(int, Point)} puts each point straight where it belongs: the arrays are allocated once, at their final
+ * size, and the points aren't buffered. Threadsafe once loaded.
+ */
+public class PointFieldCache extends ShapeFieldCache<Point> {
+
+  private final int maxDoc;
+
+  private int[] docStarts;//maxDoc + 1
+  private double[] xs;
+  private double[] ys;
+
+  //while loading: where each document's next point goes
+  private int[] docNexts;
+
+  /**
+   * @param pointCounts the number of points to be added for each document; it's reused while loading, so it must
+   *                    not be used by the caller afterwards.
+   */
+  public PointFieldCache(int[] pointCounts, int defaultLength) {
+    super(defaultLength);
+    this.maxDoc = pointCounts.length;
+    int[] starts = new int[maxDoc + 1];
+    for (int doc = 0; doc < maxDoc; doc++) {
+      starts[doc + 1] = starts[doc] + pointCounts[doc];
+    }
+    System.arraycopy(starts, 0, pointCounts, 0, maxDoc);
+    this.docStarts = starts;
+    this.docNexts = pointCounts;
+    this.xs = new double[starts[maxDoc]];
+    this.ys = new double[starts[maxDoc]];
+  }
+
+  /** For subclasses that are already loaded, overriding the accessors. */
+  protected PointFieldCache(int maxDoc) {
+    super(0);
+    this.maxDoc = maxDoc;
+  }
+
+  public int getMaxDoc() {
+    return maxDoc;
+  }
+
+  @Override
+  public void add(int docid, Point p) {
+    final int idx = docNexts[docid];
+    if (idx == docStarts[docid + 1])
+      throw new IllegalStateException("More points added for doc " + docid + " than were counted");
+    xs[idx] = p.getX();
+    ys[idx] = p.getY();
+    docNexts[docid] = idx + 1;
+  }
+
+  @Override
+  protected void finishLoading() {
+    for (int doc = 0; doc < maxDoc; doc++) {
+      if (docNexts[doc] != docStarts[doc + 1])
+        throw new IllegalStateException("Fewer points added for doc " + doc + " than were counted");
+    }
+    docNexts = null;
+  }
+
+  /** The index of the document's first point. */
+  public int getStart(int docid) {
+    return docStarts[docid];
+  }
+
+  /** The index after the document's last point; the same as {@link #getStart(int)} if it has none. */
+  public int getEnd(int docid) {
+    return docStarts[docid + 1];
+  }
+
+  public double getX(int idx) {
+    return xs[idx];
+  }
+
+  public double getY(int idx) {
+    return ys[idx];
+  }
+
+  /** The total number of points. */
+  public int size() {
+    return xs.length;
+  }
+
+  /** Makes new Points; prefer the primitive accessors. */
+  @Override
+  public List<Point> getShapes(int docid) {
+    final int start = getStart(docid);
+    final int end = getEnd(docid);
+    if (start == end)
+      return null;
+    List<Point> points = new ArrayList<Point>(end - start);
+    for (int i = start; i < end; i++) {
+      points.add(new PointImpl(getX(i), getY(i)));
+    }
+    return points;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(maxDoc:" + maxDoc + ",points:" + size() + ")";
+  }
+}
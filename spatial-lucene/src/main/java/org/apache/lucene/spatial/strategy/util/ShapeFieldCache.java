@@ -22,6 +22,11 @@ import java.util.List;
 
 import org.apache.lucene.spatial.base.shape.Shape;
 
+/**
+ * The shapes of each document in a field, for one segment, as a List per document.
+ * {@link ShapeFieldCacheProvider} loads it by calling {@link #add(int, Shape)} and then {@link #finishLoading()};
+ * subclasses may store the shapes more compactly.
+ */
 public class ShapeFieldCache<T extends Shape> {
   private List<T>[] cache;
   public int defaultLength;
@@ -32,6 +37,11 @@ public class ShapeFieldCache<T extends Shape> {
     this.defaultLength= defaultLength;
   }
 
+  /** For subclasses that store the shapes themselves, overriding {@link #add} and {@link #getShapes}. */
+  protected ShapeFieldCache( int defaultLength ) {
+    this.defaultLength = defaultLength;
+  }
+
   public void add( int docid, T s ) {
     List<T> list = cache[docid];
     if( list == null ) {
@@ -40,6 +50,10 @@ public class ShapeFieldCache<T extends Shape> {
     list.add( s );
   }
 
+  /** Called once all shapes have been added, before the cache is used. */
+  protected void finishLoading() {
+  }
+
   public List<T> getShapes( int docid ) {
     return cache[docid];
   }
@@ -21,18 +21,45 @@ import org.apache.lucene.index.*;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.spatial.base.shape.Shape;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ThreadInterruptedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.WeakHashMap;
-
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Loads and caches the shapes of a field, per segment, from the terms {@link #readShape(BytesRef)} can read.
+ * <p/>
+ * Caches are keyed by the segment's core cache key, and are built without deletions applied, so all the readers of a
+ * segment share its cache: after a reopen, only the new segments' caches are built. A segment's cache is dropped as
+ * soon as its core is closed (e.g. it was merged away); the keys are also weakly referenced, in case it never is.
+ * <p/>
+ * Threadsafe. Each segment's cache is built once, by the first thread to ask for it, while other threads asking for
+ * it wait; threads asking for other segments' caches aren't blocked, and may build theirs at the same time (so
+ * {@link #readShape(BytesRef)} must be threadsafe). Once built, getting a cache takes no lock.
+ * <p/>
+ * So that queries needn't pay for building the caches of new segments, they may be built ahead of time with
+ * {@link #warm(IndexReader, Executor)} once a reader is (re)opened.
+ */
 public abstract class ShapeFieldCacheProvider<T extends Shape> {
-  static final Logger log = LoggerFactory.getLogger(ShapeFieldCacheProvider.class);
+  protected static final Logger log = LoggerFactory.getLogger(ShapeFieldCacheProvider.class);
 
-  // it may be a List<T> or T
-  WeakHashMap<IndexReader, ShapeFieldCache<T>> sidx = new WeakHashMap<IndexReader, ShapeFieldCache<T>>();
+  //the caches, or their builds in progress, by segment core
+  private final ConcurrentHashMap<CoreKey, Future<ShapeFieldCache<T>>> caches =
+      new ConcurrentHashMap<CoreKey, Future<ShapeFieldCache<T>>>();
+  private final ReferenceQueue<Object> collectedCores = new ReferenceQueue<Object>();
 
   protected final int defaultSize;
   protected final String shapeField;
@@ -42,17 +69,121 @@ public abstract class ShapeFieldCacheProvider<T extends Shape> {
     this.defaultSize = defaultSize;
   }
 
+  /** Reads the shape of a term, or returns null if it has none. Called concurrently for different segments. */
   protected abstract T readShape( BytesRef term );
 
-  public synchronized ShapeFieldCache<T> getCache(AtomicReader reader) throws IOException {
-    ShapeFieldCache<T> idx = sidx.get(reader);
-    if (idx != null) {
-      return idx;
+  /**
+   * Makes the cache to load for a segment; subclasses may return a more compact one, e.g. sized from a first pass over
+   * the segment's terms.
+   */
+  protected ShapeFieldCache<T> newCache(AtomicReader reader) throws IOException {
+    return new ShapeFieldCache<T>(reader.maxDoc(), defaultSize);
+  }
+
+  public ShapeFieldCache<T> getCache(AtomicReader reader) throws IOException {
+    CoreKey lookupKey = new CoreKey(reader.getCoreCacheKey(), null);
+    Future<ShapeFieldCache<T>> future = caches.get(lookupKey);
+    if (future == null) {
+      expungeCollectedCores();
+      CacheTask task = new CacheTask(reader);
+      future = caches.putIfAbsent(task.key, task);
+      if (future == null) {//we build it
+        future = task;
+        addCoreClosedListener(reader);
+        task.run();
+      }
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new ThreadInterruptedException(e);
+    } catch (ExecutionException e) {
+      caches.remove(lookupKey, future);//so that it may be tried again
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Builds on the executor the caches of the segments of the reader that aren't built nor being built yet; typically
+   * just the new segments of a reopened reader. A query needing a cache that is still being built waits for it
+   * instead of building it again. The returned futures, one per segment, complete once the caches are built, and
+   * fail if a build did (in which case a later {@link #getCache(AtomicReader)} tries again).
+   */
+  public List<Future<ShapeFieldCache<T>>> warm(IndexReader reader, Executor executor) {
+    List<AtomicReaderContext> leaves = reader.getTopReaderContext().leaves();
+    List<Future<ShapeFieldCache<T>>> futures = new ArrayList<Future<ShapeFieldCache<T>>>(leaves.size());
+    expungeCollectedCores();
+    for (AtomicReaderContext leaf : leaves) {
+      CacheTask task = new CacheTask(leaf.reader());
+      Future<ShapeFieldCache<T>> future = caches.putIfAbsent(task.key, task);
+      if (future == null) {//we build it
+        future = task;
+        addCoreClosedListener(leaf.reader());
+        try {
+          executor.execute(task);
+        } catch (RejectedExecutionException e) {
+          caches.remove(task.key, task);//nobody would run it
+          throw e;
+        }
+      }
+      futures.add(future);
+    }
+    return futures;
+  }
+
+  private void addCoreClosedListener(AtomicReader reader) {
+    if (reader instanceof SegmentReader) {
+      ((SegmentReader) reader).addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+        @Override
+        public void onClose(SegmentReader owner) {
+          purge(owner.getCoreCacheKey());
+        }
+      });
+    } else {
+      //not a segment (e.g. a slow-wrapped composite reader); the best we can do is purge when it closes
+      reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+        @Override
+        public void onClose(IndexReader reader) {
+          purge(reader.getCoreCacheKey());
+        }
+      });
+    }
+  }
+
+  /** Drops the cache of the segment core with the given key. */
+  public void purge(Object coreKey) {
+    caches.remove(new CoreKey(coreKey, null));
+  }
+
+  /** The number of segments with a cache, including those being built. */
+  public int size() {
+    expungeCollectedCores();
+    return caches.size();
+  }
+
+  private void expungeCollectedCores() {
+    Object key;
+    while ((key = collectedCores.poll()) != null) {
+      caches.remove(key);
     }
+  }
+
+  /**
+   * Builds a segment's cache from its terms. Subclasses may get it elsewhere, e.g. from a file. Called concurrently
+   * for different segments.
+   */
+  protected ShapeFieldCache<T> buildCache(AtomicReader reader) throws IOException {
     long startTime = System.currentTimeMillis();
 
     log.info("Building Cache [" + reader.maxDoc() + "]");
-    idx = new ShapeFieldCache<T>(reader.maxDoc(),defaultSize);
+    ShapeFieldCache<T> idx = newCache(reader);
     int count = 0;
     DocsEnum docs = null;
     Terms terms = reader.terms(shapeField);
@@ -63,7 +194,7 @@ public abstract class ShapeFieldCacheProvider<T extends Shape> {
       while (term != null) {
         T shape = readShape(term);
         if( shape != null ) {
-          docs = te.docs(null, docs, false);
+          docs = te.docs(null, docs, false);//without deletions, so it's valid for any reader of this core
           Integer docid = docs.nextDoc();
           while (docid != DocIdSetIterator.NO_MORE_DOCS) {
             idx.add( docid, shape );
@@ -74,9 +205,75 @@ public abstract class ShapeFieldCacheProvider<T extends Shape> {
         term = te.next();
       }
     }
-    sidx.put(reader, idx);
+    idx.finishLoading();
     long elapsed = System.currentTimeMillis() - startTime;
     log.info("Cached: [" + count + " in " + elapsed + "ms] " + idx);
     return idx;
   }
+
+  /**
+   * A segment's cache build, under its key. If it fails or is cancelled, it removes itself, so that it may be tried
+   * again.
+   */
+  private class CacheTask extends FutureTask<ShapeFieldCache<T>> {
+    final CoreKey key;
+
+    CacheTask(AtomicReader reader) {
+      super(new CacheBuild(reader));
+      this.key = new CoreKey(reader.getCoreCacheKey(), collectedCores);
+    }
+
+    @Override
+    protected void done() {
+      try {
+        get();
+      } catch (InterruptedException e) {
+        //can't happen; it's done
+      } catch (ExecutionException e) {
+        log.warn("Failed to build the cache of " + shapeField, e.getCause());
+        caches.remove(key, this);
+      } catch (CancellationException e) {
+        caches.remove(key, this);
+      }
+    }
+  }
+
+  /** Builds a reader's cache. It lets go of the reader once run, so the pending map entry doesn't hold it. */
+  private class CacheBuild implements Callable<ShapeFieldCache<T>> {
+    private AtomicReader reader;
+
+    CacheBuild(AtomicReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public ShapeFieldCache<T> call() throws IOException {
+      AtomicReader r = reader;
+      reader = null;
+      return buildCache(r);
+    }
+  }
+
+  /** A weak reference to a segment core cache key, equal to others of the same key. */
+  private static class CoreKey extends WeakReference<Object> {
+    private final int hash;
+
+    CoreKey(Object coreKey, ReferenceQueue<Object> queue) {
+      super(coreKey, queue);
+      this.hash = System.identityHashCode(coreKey);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof CoreKey)) return false;
+      Object coreKey = get();
+      return coreKey != null && coreKey == ((CoreKey) o).get();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
 }
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+
+/**
+ * A {@link DocIdSet} backed by a sorted int[] of doc ids without duplicates. It's intended for sparse results where
+ * a bitset of maxDoc bits would be mostly empty. See {@link DocIdSetBuilder}.
+ */
+public class SortedIntDocIdSet extends DocIdSet {
+
+  private final int[] docs;
+  private final int size;
+
+  /**
+   * @param docs sorted, no duplicates; not copied.
+   * @param size the number of leading elements of docs that are used
+   */
+  public SortedIntDocIdSet(int[] docs, int size) {
+    assert size <= docs.length;
+    this.docs = docs;
+    this.size = size;
+  }
+
+  /** The number of documents in this set. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns an equivalent set whose array has no unused trailing space; possibly this one. */
+  public SortedIntDocIdSet trim() {
+    if (docs.length == size)
+      return this;
+    return new SortedIntDocIdSet(Arrays.copyOf(docs, size), size);
+  }
+
+  /** Approximate memory used by this set, in bytes. */
+  public long ramBytesUsed() {
+    return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+        + RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_INT)
+        + RamUsageEstimator.sizeOf(docs);
+  }
+
+  @Override
+  public boolean isCacheable() {
+    return true;
+  }
+
+  @Override
+  public DocIdSetIterator iterator() {
+    return new DocIdSetIterator() {
+      int idx = -1;
+      int doc = -1;
+
+      @Override
+      public int docID() {
+        return doc;
+      }
+
+      @Override
+      public int nextDoc() {
+        if (++idx >= size)
+          return doc = NO_MORE_DOCS;
+        return doc = docs[idx];
+      }
+
+      @Override
+      public int advance(int target) {
+        int from = idx + 1;
+        if (from >= size)
+          return doc = NO_MORE_DOCS;
+        idx = Arrays.binarySearch(docs, from, size, target);
+        if (idx < 0)
+          idx = -1 - idx;//insertion point
+        if (idx >= size)
+          return doc = NO_MORE_DOCS;
+        return doc = docs[idx];
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "SortedIntDocIdSet(size:" + size + ")";
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.spatial.base.util.LruCache;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * A cache of per-segment filter results, such as those of
+ * {@link org.apache.lucene.spatial.strategy.prefix.RecursivePrefixTreeFilter}, for query shapes that repeat.
+ * Entries are keyed by the segment's core cache key and the filter itself, so the filter's equals/hashCode (field,
+ * query shape, detail level...) decides what is a repeat. Results are stored as compact DocIdSets (see
+ * {@link DocIdSetBuilder}) without deletions applied, so they remain valid across reopens that only add deletes.
+ * <p/>
+ * The least recently used entries are evicted once the estimated size of all results exceeds a byte budget (see
+ * {@link LruCache}), and a segment's entries are dropped as soon as its core is closed (e.g. it was merged away). Hit,
+ * miss, and eviction counts are kept for sizing the budget.
+ * <p/>
+ * Threadsafe. Use {@link #wrap(Filter)} to get a caching filter.
+ */
+public class SpatialFilterCache {
+
+  private final LruCache<CacheKey, DocIdSet> cache;
+
+  //cores we've registered a close listener with; weak so we don't hold on to closed ones
+  private final Set<Object> listenedCores = Collections.newSetFromMap(new WeakHashMap<Object, Boolean>());
+
+  /** @param maxBytes the approximate memory budget for all cached results */
+  public SpatialFilterCache(long maxBytes) {
+    this.cache = new LruCache<CacheKey, DocIdSet>(maxBytes);
+  }
+
+  /** Returns a filter that gets its results from this cache, computing them with the given filter on a miss. */
+  public Filter wrap(Filter filter) {
+    return new CachedFilter(filter);
+  }
+
+  DocIdSet getDocIdSet(Filter filter, AtomicReaderContext context, Bits acceptDocs) throws IOException {
+    AtomicReader reader = context.reader();
+    CacheKey key = new CacheKey(reader.getCoreCacheKey(), filter);
+    DocIdSet docIdSet = cache.get(key);
+    if (docIdSet == null) {
+      //listen before computing, so that a core closed meanwhile isn't cached; see put()
+      final boolean cacheable = listenForClose(reader);
+      //compute without deletions so the result is valid for any reader sharing this core
+      docIdSet = toCompactDocIdSet(filter.getDocIdSet(context, null), reader.maxDoc());
+      if (cacheable)
+        put(key, docIdSet);
+    }
+    return BitsFilteredDocIdSet.wrap(docIdSet, acceptDocs);
+  }
+
+  private DocIdSet toCompactDocIdSet(DocIdSet docIdSet, int maxDoc) throws IOException {
+    if (docIdSet == null)
+      return DocIdSet.EMPTY_DOCIDSET;
+    if (docIdSet instanceof SortedIntDocIdSet)
+      return ((SortedIntDocIdSet) docIdSet).trim();
+    if (docIdSet instanceof OpenBitSet || docIdSet == DocIdSet.EMPTY_DOCIDSET)
+      return docIdSet;
+    DocIdSetBuilder builder = new DocIdSetBuilder(maxDoc);
+    DocIdSetIterator iter = docIdSet.iterator();
+    if (iter != null)
+      builder.add(iter);
+    DocIdSet result = builder.build();
+    return result instanceof SortedIntDocIdSet ? ((SortedIntDocIdSet) result).trim() : result;
+  }
+
+  private static long ramBytesUsed(DocIdSet docIdSet) {
+    if (docIdSet instanceof SortedIntDocIdSet)
+      return ((SortedIntDocIdSet) docIdSet).ramBytesUsed();
+    if (docIdSet instanceof OpenBitSet)
+      return RamUsageEstimator.sizeOf(((OpenBitSet) docIdSet).getBits());
+    return 0;
+  }
+
+  /** Registers a close listener with the reader's core if not yet done. Returns false if it's already closed. */
+  private synchronized boolean listenForClose(AtomicReader reader) {
+    if (reader.getRefCount() <= 0)
+      return false;//its listeners have fired already
+    if (listenedCores.add(reader.getCoreCacheKey()))
+      addCoreClosedListener(reader);
+    return true;
+  }
+
+  private synchronized void put(CacheKey key, DocIdSet docIdSet) {
+    if (!listenedCores.contains(key.coreKey))
+      return;//purged since we started listening; the core is closed
+    cache.put(key, docIdSet, CacheKey.BYTES + ramBytesUsed(docIdSet));
+  }
+
+  private void addCoreClosedListener(AtomicReader reader) {
+    if (reader instanceof SegmentReader) {
+      ((SegmentReader) reader).addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+        @Override
+        public void onClose(SegmentReader owner) {
+          purge(owner.getCoreCacheKey());
+        }
+      });
+    } else {
+      //not a segment (e.g. a slow-wrapped composite reader); the best we can do is purge when it closes
+      reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+        @Override
+        public void onClose(IndexReader reader) {
+          purge(reader.getCoreCacheKey());
+        }
+      });
+    }
+  }
+
+  /** Drops all entries of the segment core with the given key. */
+  public synchronized void purge(final Object coreKey) {
+    listenedCores.remove(coreKey);
+    cache.removeAll(new LruCache.KeyMatcher<CacheKey>() {
+      @Override
+      public boolean matches(CacheKey key) {
+        return key.coreKey == coreKey;
+      }
+    });
+  }
+
+  public void clear() {
+    cache.clear();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  /** The estimated memory used by the cached results, in bytes. */
+  public long getRamBytesUsed() {
+    return cache.getRamBytesUsed();
+  }
+
+  public long getMaxBytes() {
+    return cache.getMaxBytes();
+  }
+
+  public long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  public long getMissCount() {
+    return cache.getMissCount();
+  }
+
+  /** The number of entries removed to stay within the byte budget; purged segments aren't counted. */
+  public long getEvictionCount() {
+    return cache.getEvictionCount();
+  }
+
+  @Override
+  public String toString() {
+    return "SpatialFilterCache(" + cache + ")";
+  }
+
+  private static class CacheKey {
+    //the filter is usually held elsewhere too, so it isn't counted
+    static final long BYTES = RamUsageEstimator.shallowSizeOfInstance(CacheKey.class);
+
+    final Object coreKey;
+    final Filter filter;
+
+    CacheKey(Object coreKey, Filter filter) {
+      this.coreKey = coreKey;
+      this.filter = filter;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof CacheKey)) return false;
+      CacheKey that = (CacheKey) o;
+      return coreKey == that.coreKey && filter.equals(that.filter);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(coreKey) + filter.hashCode();
+    }
+  }
+
+  /** See {@link #wrap(Filter)}. */
+  private class CachedFilter extends Filter {
+    private final Filter filter;
+
+    CachedFilter(Filter filter) {
+      this.filter = filter;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+      return SpatialFilterCache.this.getDocIdSet(filter, context, acceptDocs);
+    }
+
+    @Override
+    public String toString() {
+      return "Cached(" + filter + ")";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      CachedFilter that = (CachedFilter) o;
+      return filter.equals(that.filter) && getCache() == that.getCache();
+    }
+
+    private SpatialFilterCache getCache() {
+      return SpatialFilterCache.this;
+    }
+
+    @Override
+    public int hashCode() {
+      return filter.hashCode();
+    }
+  }
+}
@@ -22,6 +22,7 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
@@ -85,16 +86,32 @@ public abstract class SpatialTestCase extends LuceneTestCase {
     indexWriter.deleteAll();
   }
 
+  protected void deleteDocuments(Term term) throws IOException {
+    indexWriter.deleteDocuments(term);
+  }
+
+  protected void forceMerge(int maxNumSegments) throws IOException {
+    indexWriter.forceMerge(maxNumSegments);
+  }
+
   protected void commit() throws IOException {
     indexWriter.commit();
     if (indexReader == null) {
       indexReader = DirectoryReader.open(directory);
     } else {
-      indexReader = DirectoryReader.openIfChanged(indexReader);
+      DirectoryReader newReader = DirectoryReader.openIfChanged(indexReader);
+      if (newReader != null) {
+        indexReader.close();
+        indexReader = newReader;
+      }
     }
     indexSearcher = newSearcher(indexReader);
   }
 
+  protected DirectoryReader getIndexReader() {
+    return indexReader;
+  }
+
   protected void verifyDocumentsIndexed(int numDocs) {
     assertEquals(numDocs, indexReader.numDocs());
   }
@@ -19,13 +19,31 @@ package org.apache.lucene.spatial.base.prefix;
 
 import org.apache.lucene.spatial.base.context.simple.SimpleSpatialContext;
 import org.apache.lucene.spatial.base.prefix.geohash.GeohashPrefixTree;
+import org.apache.lucene.spatial.base.prefix.geohash.GeohashUtils;
+import org.apache.lucene.spatial.base.prefix.quad.QuadPrefixTree;
+import org.apache.lucene.spatial.base.shape.Point;
 import org.apache.lucene.spatial.base.shape.Rectangle;
 import org.apache.lucene.spatial.base.shape.Shape;
+import org.apache.lucene.spatial.base.shape.SpatialRelation;
+import org.apache.lucene.util.ThreadInterruptedException;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author David Smiley - dsmiley@mitre.org
@@ -60,4 +78,317 @@ public class SpatialPrefixTreeTest {
       assertTrue(prevNShape.getHeight() > sbox.getHeight());
     }
   }
+
+  @Test
+  public void testNodesIterator() {
+    SpatialPrefixTree quadTree = new QuadPrefixTree(ctx, 6);
+    for (SpatialPrefixTree grid : new SpatialPrefixTree[]{trie, quadTree}) {
+      for (Shape shape : new Shape[]{ctx.makeRect(-10, 35, 20, 50), ctx.makeRect(170, -170, -5, 5),
+          ctx.makeCircle(ctx.makePoint(-100, 40), 1000)}) {
+        for (int detailLevel = 1; detailLevel <= grid.getMaxLevels(); detailLevel++) {
+          for (boolean inclParents : new boolean[]{true, false}) {
+            List<Node> expected = new ArrayList<Node>();
+            recursiveGetNodes(grid.getWorldNode(), shape, detailLevel, inclParents, expected);
+            String msg = grid + " " + shape + " " + detailLevel + " " + inclParents;
+            assertNodes(msg, expected, grid.getNodes(shape, detailLevel, inclParents).iterator());
+            assertNodes(msg, expected, grid.getNodesIterator(shape, detailLevel, inclParents));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testNodesOfSmallShapes() {
+    //geohash 's' is [0,45]x[0,45], 'u' is [0,45]x[45,90] and 'v' is [45,90]x[45,90]; 's0' is [0,11.25]x[0,5.625]
+    assertEquals(Arrays.asList("u+", "v+"),
+        tokensAndLeaves(trie.getNodes(ctx.makeRect(40, 50, 80, 85), 1, false)));
+    assertEquals(Arrays.asList("s+"),
+        tokensAndLeaves(trie.getNodes(ctx.makeRect(1, 44, 1, 44), 1, true)));
+    assertEquals(Arrays.asList("s", "s0+"),
+        tokensAndLeaves(trie.getNodes(ctx.makeRect(0.5, 10, 0.5, 4), 2, true)));
+    assertEquals(Arrays.asList("s0+"),
+        tokensAndLeaves(trie.getNodes(ctx.makeRect(0.5, 10, 0.5, 4), 2, false)));
+  }
+
+  /**
+   * The recursive algorithm that getNodes() used before it was built on getNodesIterator(), as an independent
+   * oracle for both. The world cell is never returned, nor made a leaf.
+   */
+  private static void recursiveGetNodes(Node node, Shape shape, int detailLevel, boolean inclParents,
+                                        List<Node> result) {
+    if (node.isLeaf()) {//cell is within shape
+      result.add(node);
+      return;
+    }
+    final Collection<Node> subCells = node.getSubCells(shape);
+    if (node.getLevel() == detailLevel - 1) {
+      if (subCells.size() < node.getSubCellsSize() || node.getLevel() == 0) {
+        if (inclParents && node.getLevel() > 0)
+          result.add(node);
+        for (Node subCell : subCells) {
+          subCell.setLeaf();
+        }
+        result.addAll(subCells);
+      } else {//a bottom level (i.e. detail level) optimization where all boxes intersect, so use parent cell.
+        node.setLeaf();
+        result.add(node);
+      }
+    } else {
+      if (inclParents && node.getLevel() > 0)
+        result.add(node);
+      for (Node subCell : subCells) {
+        recursiveGetNodes(subCell, shape, detailLevel, inclParents, result);
+      }
+    }
+  }
+
+  private static void assertNodes(String msg, List<Node> expected, Iterator<Node> actual) {
+    List<Node> actualList = new ArrayList<Node>();
+    while (actual.hasNext()) {
+      actualList.add(actual.next());
+    }
+    assertEquals(msg, tokensAndLeaves(expected), tokensAndLeaves(actualList));
+  }
+
+  /** Each cell's token, with a '+' appended for leaves. */
+  private static List<String> tokensAndLeaves(List<Node> cells) {
+    List<String> tokens = new ArrayList<String>(cells.size());
+    for (Node cell : cells) {
+      tokens.add(cell.getTokenString() + (cell.isLeaf() ? "+" : ""));
+    }
+    return tokens;
+  }
+
+  @Test
+  public void testGetSubCell() {
+    SpatialPrefixTree geohashTree = new GeohashPrefixTree(ctx, 14);//beyond the levels of the cell ids
+    SpatialPrefixTree quadTree = new QuadPrefixTree(ctx, 34);
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      Point p = i < 4 ? ctx.makePoint(i % 2 == 0 ? 0 : 180, i < 2 ? 0 : -90)//on edges
+          : ctx.makePoint(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90);
+      Node cell = geohashTree.getWorldNode();
+      while (cell.getLevel() < geohashTree.getMaxLevels()) {
+        cell = cell.getSubCell(p);
+        String token = cell.getTokenString();
+        assertEquals(GeohashUtils.encodeLatLon(p.getY(), p.getX(), cell.getLevel()), token);
+        assertEquals(geohashTree.getNode(token).getShape(), cell.getShape());
+      }
+      cell = quadTree.getWorldNode();
+      while (cell.getLevel() < quadTree.getMaxLevels()) {
+        cell = cell.getSubCell(p);
+        assertEquals(quadTree.getNode(cell.getTokenString()).getShape(), cell.getShape());
+        assertTrue(cell.getShape().relate(p, ctx) != SpatialRelation.DISJOINT);
+      }
+    }
+  }
+
+  @Test
+  public void testNodesWithBudget() {
+    Shape shape = ctx.makeCircle(ctx.makePoint(20, 10), 15);
+    int detailLevel = trie.getMaxLevels();
+    for (boolean inclParents : new boolean[]{true, false}) {
+      List<Node> cells = trie.getNodes(shape, detailLevel, inclParents);
+      //a budget that isn't reached changes nothing
+      List<Node> budgetCells = trie.getNodes(shape, detailLevel, inclParents, 1000000);
+      assertEquals(cells, budgetCells);
+      for (int i = 0; i < cells.size(); i++) {
+        assertEquals(cells.get(i).isLeaf(), budgetCells.get(i).isLeaf());
+      }
+
+      for (int maxCells : new int[]{1, 10, 50, 200}) {
+        budgetCells = trie.getNodes(shape, detailLevel, inclParents, maxCells);
+        int numLeaves = 0;
+        for (Node cell : budgetCells) {
+          if (cell.isLeaf())
+            numLeaves++;
+          else
+            assertTrue(inclParents);
+        }
+        assertTrue(numLeaves <= Math.max(maxCells, trie.getWorldNode().getSubCells(shape).size()));
+        //every cell of the full covering is beneath a leaf of the coarser one
+        for (Node cell : cells) {
+          if (!cell.isLeaf())
+            continue;
+          boolean covered = false;
+          for (Node budgetCell : budgetCells) {
+            covered |= budgetCell.isLeaf() && cell.getTokenString().startsWith(budgetCell.getTokenString());
+          }
+          assertTrue(cell.toString(), covered);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testNodesWithBudgetDividesMostResolvedFirst() {
+    //4 of 's' sub-cells intersect the rect but only 2 of 't', so dividing 't' resolves more of its area
+    Shape shape = ctx.makeRect(1, 57, 1, 2);
+    List<String> tokens = tokensAndLeaves(trie.getNodes(shape, 2, false, 5));
+    assertEquals(3, tokens.size());
+    assertEquals("s+", tokens.get(0));
+    assertTrue(tokens.get(1).startsWith("t") && tokens.get(2).startsWith("t"));
+    //with room for both
+    tokens = tokensAndLeaves(trie.getNodes(shape, 2, false, 6));
+    assertEquals(tokensAndLeaves(trie.getNodes(shape, 2, false)), tokens);
+  }
+
+  @Test
+  public void testCoveringCache() {
+    Shape shape = ctx.makeCircle(ctx.makePoint(20, 10), 15);
+    int detailLevel = trie.getMaxLevels();
+    List<Node> cells = trie.getNodes(shape, detailLevel, true);
+
+    CoveringCache cache = new CoveringCache(1024 * 1024);
+    trie.setCoveringCache(cache);
+    try {
+      //shapes being indexed bypass it
+      trie.getNodes(shape, detailLevel, true);
+      trie.getNodes(shape, detailLevel, true, 50);
+      trie.getNodesIterator(shape, detailLevel, true);
+      assertEquals(0, cache.size());
+      assertEquals(0, cache.getMissCount());
+
+      assertEquals(cells, trie.getQueryNodes(shape, detailLevel, true, 0, null, 0));
+      assertEquals(0, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+      //an equal shape hits
+      List<Node> cachedCells = trie.getQueryNodes(
+          ctx.makeCircle(ctx.makePoint(20, 10), 15), detailLevel, true, 0, null, 0);
+      assertEquals(1, cache.getHitCount());
+      assertEquals(cells, cachedCells);
+      for (int i = 0; i < cells.size(); i++) {
+        assertEquals(cells.get(i).isLeaf(), cachedCells.get(i).isLeaf());
+        assertEquals(cells.get(i).getShape(), cachedCells.get(i).getShape());
+      }
+      //other arguments don't
+      trie.getQueryNodes(shape, detailLevel, false, 0, null, 0);
+      assertEquals(trie.getNodes(shape, detailLevel, true, 50),
+          trie.getQueryNodes(shape, detailLevel, true, 50, null, 0));
+      assertEquals(1, cache.getHitCount());
+      assertEquals(3, cache.size());
+      assertEquals(cells.size(), cache.get(trie, shape, detailLevel, true, 0).size());
+      //points aren't cached
+      trie.getQueryNodes(ctx.makePoint(20, 10), detailLevel, true, 0, null, 0);
+      assertEquals(3, cache.size());
+
+      //evicted to stay within budget
+      long bytes = cache.getRamBytesUsed();
+      trie.setCoveringCache(cache = new CoveringCache(bytes - 1));
+      trie.getQueryNodes(shape, detailLevel, true, 0, null, 0);
+      trie.getQueryNodes(shape, detailLevel, false, 0, null, 0);
+      trie.getQueryNodes(shape, detailLevel, true, 50, null, 0);
+      assertTrue(cache.getEvictionCount() > 0);
+      assertTrue(cache.getRamBytesUsed() < bytes);
+    } finally {
+      trie.setCoveringCache(null);
+    }
+  }
+
+  @Test
+  public void testParallelNodes() {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Shape shape = ctx.makeRect(-80, 40, -30, 55);
+      SpatialPrefixTree quadTrie = new QuadPrefixTree(ctx, 8);
+      for (SpatialPrefixTree tree : new SpatialPrefixTree[]{trie, quadTrie}) {
+        for (boolean inclParents : new boolean[]{true, false}) {
+          for (int detailLevel = 1; detailLevel <= tree.getMaxLevels(); detailLevel++) {
+            List<Node> cells = tree.getNodes(shape, detailLevel, inclParents);
+            List<Node> parallelCells = tree.getNodes(shape, detailLevel, inclParents, executor, 4);
+            assertEquals(cells, parallelCells);
+            for (int i = 0; i < cells.size(); i++) {
+              assertEquals(cells.get(i).isLeaf(), parallelCells.get(i).isLeaf());
+            }
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testParallelNodesInterrupted() throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    final CountDownLatch busy = new CountDownLatch(1);
+    try {
+      //the other worker waits in the queue, so the calling thread waits for it
+      executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          busy.await();
+          return null;
+        }
+      });
+      Shape shape = ctx.makeRect(-80, 40, -30, 55);
+      Thread.currentThread().interrupt();
+      try {
+        trie.getNodes(shape, trie.getMaxLevels(), true, executor, 4);
+        fail("interrupt not rethrown");
+      } catch (ThreadInterruptedException e) {
+        //expected
+      }
+      assertFalse(Thread.interrupted());//consumed, as Lucene does
+    } finally {
+      busy.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSharedTopCells() {
+    List<Node> topCells = trie.getTopCells();
+    assertEquals(trie.getWorldNode().getSubCellsSize(), topCells.size());
+    assertTrue(topCells == trie.getTopCells());
+    assertTrue(trie.getWorldNode().isShared());
+    for (Node cell : topCells) {
+      assertTrue(cell.isShared());
+      try {
+        cell.setLeaf();
+        assertTrue("shared cells can't be modified", false);
+      } catch (IllegalStateException e) {
+        //expected
+      }
+    }
+
+    //relations are returned alongside the cells, the same as those stored on new cells
+    Shape shape = ctx.makeRect(-80, 40, -30, 55);
+    for (Node cell : new Node[]{trie.getWorldNode(), trie.getNode("9")}) {
+      List<Node> cells = new ArrayList<Node>();
+      List<SpatialRelation> rels = new ArrayList<SpatialRelation>();
+      cell.addSubCells(shape, cells, rels);
+      List<Node> expected = new ArrayList<Node>(cell.getSubCells(shape));
+      assertEquals(expected, cells);
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(expected.get(i).getShapeRel(), rels.get(i));
+        assertFalse(cells.get(i).isLeaf());
+      }
+    }
+  }
+
+  @Test
+  public void testCellShapeTable() {
+    CellShapeTable table = new CellShapeTable(GeohashUtils.CELL_IDS, 12, CellShapeTable.DEFAULT_MAX_SLOTS);
+    assertEquals(3, table.getMaxLevel());//32^3 cells fit in 64K slots
+    assertEquals(2, new CellShapeTable(GeohashUtils.CELL_IDS, 2, CellShapeTable.DEFAULT_MAX_SLOTS).getMaxLevel());
+
+    //the upper levels' shapes are shared, and equal to those computed from the token
+    SpatialPrefixTree quadTrie = new QuadPrefixTree(ctx, 12);
+    for (SpatialPrefixTree tree : new SpatialPrefixTree[]{trie, quadTrie}) {
+      String token = tree == trie ? "9q8y" : "ADCBBACDABCD";
+      for (int level = 1; level <= token.length(); level++) {
+        Node cell = tree.getNode(token.substring(0, level));
+        Node other = tree.getNode(token.substring(0, level));
+        assertEquals(cell.getShape(), other.getShape());
+        assertEquals(level <= (tree == trie ? 3 : 7), cell.getShape() == other.getShape());
+      }
+      //sub-cells' shapes are computed from their parent's
+      Node cell = tree.getNode(token.substring(0, token.length() - 1));
+      for (Node subCell : cell.getSubCells(null)) {
+        assertEquals(tree.getNode(subCell.getTokenString()).getShape(), subCell.getShape());
+      }
+    }
+  }
 }
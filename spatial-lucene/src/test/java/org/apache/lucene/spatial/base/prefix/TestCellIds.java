@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.lucene.spatial.base.prefix;
+
+import org.apache.lucene.spatial.base.context.simple.SimpleSpatialContext;
+import org.apache.lucene.spatial.base.prefix.geohash.GeohashPrefixTree;
+import org.apache.lucene.spatial.base.prefix.geohash.GeohashUtils;
+import org.apache.lucene.spatial.base.prefix.quad.QuadPrefixTree;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CellIds}
+ */
+public class TestCellIds {
+
+  @Test
+  public void testNavigation() {
+    CellIds ids = GeohashUtils.CELL_IDS;
+    assertEquals(12, ids.getMaxLevels());
+    long world = ids.getWorldId();
+    assertEquals(0, ids.getLevel(world));
+
+    long id = ids.fromToken("9q8yy");
+    assertEquals(5, ids.getLevel(id));
+    assertEquals("9q8yy", ids.toTokenString(id));
+    assertEquals(id, ids.fromToken("9q8yy".getBytes(), 0, 5));
+    assertEquals(ids.fromToken("9q8y"), ids.getParent(id));
+    assertEquals(ids.fromToken("9q8yyz"), ids.getChild(id, 31));
+    assertEquals(ids.fromToken("9q8yy0"), ids.getChild(id, 0));
+    assertEquals(8, ids.getDigit(id, 3));//'8'
+    assertEquals(22, ids.getDigit(id, 2));//'q'
+    assertTrue(ids.contains(world, id));
+    assertTrue(ids.contains(ids.fromToken("9q"), id));
+    assertTrue(ids.contains(id, id));
+    assertFalse(ids.contains(id, ids.getParent(id)));
+    assertFalse(ids.contains(ids.fromToken("9r"), id));
+
+    byte[] buf = new byte[10];
+    assertEquals(5, ids.toToken(id, buf, 3));
+    assertEquals("9q8yy", new String(buf, 3, 5));
+  }
+
+  @Test
+  public void testSortsLikeTokens() {
+    CellIds ids = GeohashUtils.CELL_IDS;
+    String[] tokens = {"0000", "0z00", "b000", "bzzz", "zzzz"};
+    for (int i = 1; i < tokens.length; i++) {
+      assertTrue(ids.fromToken(tokens[i - 1]) < ids.fromToken(tokens[i]));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadToken() {
+    GeohashUtils.CELL_IDS.fromToken("9a");//'a' isn't a geohash character
+  }
+
+  @Test
+  public void testNodesFromIds() {
+    SimpleSpatialContext ctx = SimpleSpatialContext.GEO_KM;
+    checkSubCells(new GeohashPrefixTree(ctx, 4));
+    checkSubCells(new QuadPrefixTree(ctx, 6));
+  }
+
+  /** Sub-cells made from ids should be the same as ones made from their tokens. */
+  private void checkSubCells(SpatialPrefixTree tree) {
+    Node cell = tree.getWorldNode();
+    while (cell.getLevel() < tree.getMaxLevels()) {
+      Iterator<Node> subCells = cell.getSubCells().iterator();
+      Node subCell = null;
+      for (int i = 0; i < 3 && subCells.hasNext(); i++) {//pick one that isn't the first
+        subCell = subCells.next();
+      }
+      assertTrue(subCell.hasId());
+      Node fromToken = tree.getNode(subCell.getTokenString());
+      assertEquals(fromToken, subCell);
+      assertEquals(fromToken.getId(), subCell.getId());
+      assertEquals(fromToken.getShape(), subCell.getShape());
+      assertEquals(fromToken.getCenter(), subCell.getCenter());
+      assertEquals(cell.getId(), tree.getCellIds().getParent(subCell.getId()));
+      cell = subCell;
+    }
+  }
+}
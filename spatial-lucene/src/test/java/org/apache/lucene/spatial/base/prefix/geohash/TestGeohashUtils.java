@@ -23,6 +23,9 @@ import org.apache.lucene.spatial.base.distance.DistanceUnits;
 import org.apache.lucene.spatial.base.shape.Point;
 import org.junit.Test;
 
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -100,4 +103,52 @@ public class TestGeohashUtils {
     assertEquals(1.40625,box[0],0.0001);
     assertEquals(1.40625,box[1],0.0001);
   }
+
+  /** The bit arithmetic must agree with plain bisection, including for points exactly on cell boundaries. */
+  @Test
+  public void testBitsAgainstBisection() {
+    Random random = new Random(7);
+    for (int i = 0; i < 2000; i++) {
+      double lat, lon;
+      if (i < 1000) {
+        lat = random.nextDouble() * 180 - 90;
+        lon = random.nextDouble() * 360 - 180;
+      } else {//on a boundary at some level
+        lat = -90 + random.nextInt(1 << 20) * (180D / (1 << 20));
+        lon = -180 + random.nextInt(1 << (i % 28)) * (360D / (1 << (i % 28)));
+      }
+      String hash = bisectionEncode(lat, lon, 14);
+      for (int precision = 1; precision <= 14; precision++) {
+        String expected = hash.substring(0, precision);
+        assertEquals(expected, GeohashUtils.encodeLatLon(lat, lon, precision));
+        byte[] bytes = new byte[precision + 1];
+        assertEquals(precision, GeohashUtils.encodeLatLon(lat, lon, precision, bytes, 1));
+        assertEquals(expected, new String(bytes, 1, precision));
+        if (precision <= GeohashUtils.CELL_IDS.getMaxLevels())
+          assertEquals(expected, GeohashUtils.CELL_IDS.toTokenString(GeohashUtils.encodeCellId(lat, lon, precision)));
+        assertArrayEquals(bisectionDecode(expected), GeohashUtils.decodeBox(expected), 0);
+      }
+    }
+    for (double[] latLon : new double[][]{{-90, -180}, {90, 180}, {0, 0}, {45, 90}}) {
+      String hash = bisectionEncode(latLon[0], latLon[1], 12);
+      assertEquals(hash, GeohashUtils.encodeLatLon(latLon[0], latLon[1], 12));
+    }
+  }
+
+  private static String bisectionEncode(double lat, double lon, int precision) {
+    StringBuilder hash = new StringBuilder();
+    double[] box = {-180, 180, -90, 90};
+    for (int i = 0; i < precision; i++) {
+      hash.append(GeohashUtils.getChar(GeohashUtils.encodeChar(lat, lon, i, box)));
+    }
+    return hash.toString();
+  }
+
+  private static double[] bisectionDecode(String hash) {
+    double[] box = {-180, 180, -90, 90};
+    for (int i = 0; i < hash.length(); i++) {
+      GeohashUtils.decodeChar(GeohashUtils.getCharIdx(hash.charAt(i)), i, box);
+    }
+    return box;
+  }
 }
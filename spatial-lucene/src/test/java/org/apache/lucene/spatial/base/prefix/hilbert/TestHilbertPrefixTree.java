@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.base.prefix.hilbert;
+
+import org.apache.lucene.spatial.base.context.simple.SimpleSpatialContext;
+import org.apache.lucene.spatial.base.prefix.Node;
+import org.apache.lucene.spatial.base.prefix.SpatialPrefixTree;
+import org.apache.lucene.spatial.base.prefix.SpatialPrefixTreeFactory;
+import org.apache.lucene.spatial.base.shape.Point;
+import org.apache.lucene.spatial.base.shape.Rectangle;
+import org.apache.lucene.spatial.base.shape.SpatialRelation;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link HilbertPrefixTree}
+ */
+public class TestHilbertPrefixTree {
+
+  private final SimpleSpatialContext ctx = SimpleSpatialContext.GEO_KM;
+  private final HilbertPrefixTree tree = new HilbertPrefixTree(ctx, 5);
+
+  @Test
+  public void testFactory() {
+    SpatialPrefixTree spt = SpatialPrefixTreeFactory.makeSPT(
+        Collections.singletonMap("prefixTree", "hilbert"), getClass().getClassLoader(), ctx);
+    assertTrue(spt instanceof HilbertPrefixTree);
+  }
+
+  /** Consecutive cells of a level, in term order, must share an edge. */
+  @Test
+  public void testCurveIsContinuous() {
+    List<Node> cells = new ArrayList<Node>();
+    collect(tree.getWorldNode(), tree.getMaxLevels(), cells);
+    assertEquals(1 << (2 * tree.getMaxLevels()), cells.size());
+    Rectangle world = ctx.getWorldBounds();
+    for (int i = 1; i < cells.size(); i++) {
+      assertTrue(cells.get(i - 1).getTokenString().compareTo(cells.get(i).getTokenString()) < 0);
+      Rectangle a = (Rectangle) cells.get(i - 1).getShape();
+      Rectangle b = (Rectangle) cells.get(i).getShape();
+      //centers are one cell apart on exactly one axis
+      double dx = Math.abs(a.getCenter().getX() - b.getCenter().getX()) / a.getWidth();
+      double dy = Math.abs(a.getCenter().getY() - b.getCenter().getY()) / a.getHeight();
+      assertTrue(cells.get(i).toString(), (dx == 1 && dy == 0) || (dx == 0 && dy == 1));
+    }
+    //the curve starts at the bottom left corner
+    Rectangle first = (Rectangle) cells.get(0).getShape();
+    assertEquals(world.getMinX(), first.getMinX(), 0);
+    assertEquals(world.getMinY(), first.getMinY(), 0);
+  }
+
+  private void collect(Node cell, int level, List<Node> result) {
+    for (Node subCell : cell.getSubCells(null)) {
+      //the shape of a sub-cell derived from its parent must be the same as one from its token
+      assertEquals(tree.getNode(subCell.getTokenString()).getShape(), subCell.getShape());
+      if (subCell.getLevel() == level)
+        result.add(subCell);
+      else
+        collect(subCell, level, result);
+    }
+  }
+
+  @Test
+  public void testGetSubCell() {
+    HilbertPrefixTree deepTree = new HilbertPrefixTree(ctx, 34);//beyond the levels of the cell ids
+    Random random = new Random(3);
+    for (int i = 0; i < 100; i++) {
+      Point p = ctx.makePoint(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90);
+      Node cell = deepTree.getWorldNode();
+      while (cell.getLevel() < deepTree.getMaxLevels()) {
+        cell = cell.getSubCell(p);
+        assertEquals(deepTree.getNode(cell.getTokenString()).getShape(), cell.getShape());
+        assertTrue(cell.getShape().relate(p, ctx) != SpatialRelation.DISJOINT);
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.base.prefix.quad;
+
+import org.apache.lucene.spatial.base.context.simple.SimpleSpatialContext;
+import org.apache.lucene.spatial.base.prefix.Node;
+import org.apache.lucene.spatial.base.shape.Point;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PackedQuadPrefixTree}
+ */
+public class TestPackedQuadPrefixTree {
+
+  private final SimpleSpatialContext ctx = SimpleSpatialContext.GEO_KM;
+  private final QuadPrefixTree quadTree = new QuadPrefixTree(ctx, 7);
+  private final PackedQuadPrefixTree packedTree = new PackedQuadPrefixTree(ctx, 7);
+
+  @Test
+  public void testTokens() {
+    assertEquals("", PackedQuadPrefixTree.toPackedToken(""));
+    String packed = PackedQuadPrefixTree.toPackedToken("DCBADCB");
+    assertEquals(3, packed.length());
+    assertEquals("DCBADCB", PackedQuadPrefixTree.toQuadToken(packed));
+    assertEquals(7, packedTree.getNode(packed).getLevel());
+  }
+
+  /** Cells must be the same as the quad tree's, in the same sort order, and leaf terms must sort before sub-cells. */
+  @Test
+  public void testSameAsQuadTree() {
+    List<Node> quadCells = new ArrayList<Node>();
+    collect(quadTree.getWorldNode(), quadCells);
+    List<Node> packedCells = new ArrayList<Node>();
+    collect(packedTree.getWorldNode(), packedCells);
+    assertEquals(quadCells.size(), packedCells.size());
+    String prevTerm = "";
+    for (int i = 0; i < quadCells.size(); i++) {
+      Node quadCell = quadCells.get(i);
+      Node packedCell = packedCells.get(i);
+      String packedToken = packedCell.getTokenString();
+      assertEquals(PackedQuadPrefixTree.toPackedToken(quadCell.getTokenString()), packedToken);
+      assertEquals(quadCell.getLevel(), packedCell.getLevel());
+      assertEquals(quadCell.getShape(), packedCell.getShape());
+      assertEquals(packedCell.getShape(), packedTree.getNode(packedToken).getShape());
+      //depth-first order is term order; each cell is followed by its leaf term
+      assertTrue(prevTerm.compareTo(packedToken) < 0);
+      prevTerm = packedToken + (char) Node.LEAF_BYTE;
+      assertTrue(packedToken.compareTo(prevTerm) < 0);
+    }
+  }
+
+  private void collect(Node cell, List<Node> result) {
+    for (Node subCell : cell.getSubCells(null)) {
+      result.add(subCell);
+      if (subCell.getLevel() < 5)
+        collect(subCell, result);
+    }
+  }
+
+  @Test
+  public void testIsPrefixOf() {
+    Random random = new Random(5);
+    for (int i = 0; i < 2000; i++) {
+      String a = randomQuadToken(random);
+      String b = random.nextBoolean() ? randomQuadToken(random) : a + randomQuadToken(random);
+      boolean leaf = random.nextBoolean();
+      byte[] term = (PackedQuadPrefixTree.toPackedToken(b) + (leaf ? (char) Node.LEAF_BYTE : "")).getBytes();
+      Node cell = packedTree.getNode(PackedQuadPrefixTree.toPackedToken(a));
+      assertEquals(a + " " + b, b.startsWith(a), cell.isPrefixOf(term, 0, term.length));
+    }
+  }
+
+  private static String randomQuadToken(Random random) {
+    char[] chars = new char[random.nextInt(7)];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = (char) ('A' + random.nextInt(4));
+    }
+    return new String(chars);
+  }
+
+  @Test
+  public void testGetSubCell() {
+    QuadPrefixTree deepQuadTree = new QuadPrefixTree(ctx, 26);
+    PackedQuadPrefixTree deepPackedTree = new PackedQuadPrefixTree(ctx, 26);
+    Random random = new Random(9);
+    for (int i = 0; i < 100; i++) {
+      Point p = ctx.makePoint(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90);
+      Node quadCell = deepQuadTree.getNode(p, 26);
+      Node packedCell = deepPackedTree.getNode(p, 26);
+      assertEquals(PackedQuadPrefixTree.toPackedToken(quadCell.getTokenString()), packedCell.getTokenString());
+      assertEquals(9, packedCell.getTokenString().length());
+      assertEquals(quadCell.getShape(), packedCell.getShape());
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.base.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link LruCache}
+ */
+public class TestLruCache {
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    final long entryBytes = 100 + LruCache.ENTRY_OVERHEAD_BYTES;
+    LruCache<String, String> cache = new LruCache<String, String>(3 * entryBytes);
+    assertTrue(cache.put("a", "A", 100));
+    assertTrue(cache.put("b", "B", 100));
+    assertTrue(cache.put("c", "C", 100));
+    assertEquals(3 * entryBytes, cache.getRamBytesUsed());
+    assertEquals("A", cache.get("a"));//now "b" is the least recently used
+    assertTrue(cache.put("d", "D", 100));
+    assertNull(cache.get("b"));
+    assertEquals("A", cache.get("a"));
+    assertEquals(3, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    //too big for the budget alone
+    assertFalse(cache.put("e", "E", 3 * entryBytes));
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void testRemoveAll() {
+    LruCache<String, String> cache = new LruCache<String, String>(1024 * 1024);
+    cache.put("a1", "A", 10);
+    cache.put("b1", "B", 20);
+    cache.put("a2", "A", 30);
+    cache.removeAll(new LruCache.KeyMatcher<String>() {
+      @Override
+      public boolean matches(String key) {
+        return key.startsWith("a");
+      }
+    });
+    assertEquals(1, cache.size());
+    assertEquals(20 + LruCache.ENTRY_OVERHEAD_BYTES, cache.getRamBytesUsed());
+    assertEquals(0, cache.getEvictionCount());
+  }
+}
@@ -20,11 +20,14 @@ package org.apache.lucene.spatial.strategy.prefix;
 import org.apache.lucene.spatial.base.context.SpatialContext;
 import org.apache.lucene.spatial.base.prefix.geohash.GeohashPrefixTree;
 import org.apache.lucene.spatial.strategy.SimpleSpatialFieldInfo;
+import org.apache.lucene.spatial.strategy.util.SpatialFilterCache;
 import org.apache.lucene.spatial.SpatialMatchConcern;
 import org.apache.lucene.spatial.StrategyTestCase;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public abstract class BaseRecursivePrefixTreeStrategyTestCase extends StrategyTestCase<SimpleSpatialFieldInfo> {
@@ -54,4 +57,70 @@ public abstract class BaseRecursivePrefixTreeStrategyTestCase extends StrategyTe
       executeQueries(SpatialMatchConcern.FILTER, QTEST_Cities_IsWithin_BBox);
     }
   }
+
+  @Test
+  public void testFilterWithVariableScanTermsThreshold() throws IOException {
+    getAddAndVerifyIndexedDocuments(DATA_WORLD_CITIES_POINTS);
+
+    //execute queries for scan decisions ranging from always-divide to always-scan
+    for(int threshold = 1; threshold <= 100000; threshold *= 10) {
+      ((RecursivePrefixTreeStrategy)strategy).setScanTermsThreshold(threshold);
+      executeQueries(SpatialMatchConcern.FILTER, QTEST_Cities_IsWithin_BBox);
+    }
+  }
+
+  @Test
+  public void testFilterWithParallelTraversal() throws IOException {
+    getAddAndVerifyIndexedDocuments(DATA_WORLD_CITIES_POINTS);
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      ((RecursivePrefixTreeStrategy)strategy).setExecutor(executor, 4);
+      executeQueries(SpatialMatchConcern.FILTER, QTEST_Cities_IsWithin_BBox);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testFilterWithLazyDocIdSet() throws IOException {
+    getAddAndVerifyIndexedDocuments(DATA_WORLD_CITIES_POINTS);
+
+    ((RecursivePrefixTreeStrategy)strategy).setLazyFilter(true);
+    executeQueries(SpatialMatchConcern.FILTER, QTEST_Cities_IsWithin_BBox);
+  }
+
+  @Test
+  public void testFilterWithStats() throws IOException {
+    getAddAndVerifyIndexedDocuments(DATA_WORLD_CITIES_POINTS);
+
+    RecursivePrefixTreeStrategy rptStrategy = (RecursivePrefixTreeStrategy) strategy;
+    AggregateTraversalStats stats = new AggregateTraversalStats(rptStrategy.getGrid().getMaxLevels());
+    rptStrategy.setStatsSink(stats);
+    executeQueries(SpatialMatchConcern.FILTER, QTEST_Cities_IsWithin_BBox);
+    assertTrue(stats.getTraversals() > 0);
+    assertTrue(stats.getSeeks() > 0);
+    assertTrue(stats.getRelates() > 0);
+    assertTrue(stats.getLeafHits() > 0);
+    assertTrue(stats.getPostingsDocs() >= stats.getLeafHits());
+    assertEquals(0, stats.getRelatesByLevel()[0]);//the world cell is never related
+
+    stats.reset();
+    assertEquals(0, stats.getTraversals());
+    assertEquals(0, stats.getSeeks());
+  }
+
+  @Test
+  public void testFilterWithCache() throws IOException {
+    getAddAndVerifyIndexedDocuments(DATA_WORLD_CITIES_POINTS);
+
+    SpatialFilterCache cache = new SpatialFilterCache(1024 * 1024);
+    ((RecursivePrefixTreeStrategy)strategy).setFilterCache(cache);
+    executeQueries(SpatialMatchConcern.FILTER, QTEST_Cities_IsWithin_BBox);
+    long misses = cache.getMissCount();
+    assertTrue(misses > 0);
+    executeQueries(SpatialMatchConcern.FILTER, QTEST_Cities_IsWithin_BBox);//now from the cache
+    assertEquals(misses, cache.getMissCount());
+    assertTrue(cache.getHitCount() >= misses);
+  }
 }
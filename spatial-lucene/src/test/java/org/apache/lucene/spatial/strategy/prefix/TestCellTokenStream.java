@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.prefix;
+
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.spatial.base.context.simple.SimpleSpatialContext;
+import org.apache.lucene.spatial.base.prefix.Node;
+import org.apache.lucene.spatial.base.prefix.SpatialPrefixTree;
+import org.apache.lucene.spatial.base.prefix.geohash.GeohashPrefixTree;
+import org.apache.lucene.spatial.base.prefix.quad.PackedQuadPrefixTree;
+import org.apache.lucene.spatial.base.prefix.quad.QuadPrefixTree;
+import org.apache.lucene.spatial.base.shape.Shape;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestCellTokenStream {
+
+  @Test
+  public void testTokensAsBytes() throws IOException {
+    SimpleSpatialContext ctx = SimpleSpatialContext.GEO_KM;
+    Shape shape = ctx.makeCircle(ctx.makePoint(20, 10), 15);
+    for (SpatialPrefixTree grid : new SpatialPrefixTree[]{
+        new GeohashPrefixTree(ctx, 4), new QuadPrefixTree(ctx, 8), new PackedQuadPrefixTree(ctx, 8)}) {
+      List<Node> cells = grid.getNodes(shape, grid.getMaxLevels(), true);
+      //the same tokens as the Strings, with a leaf's token followed by it again with the leaf byte
+      List<String> expected = new ArrayList<String>();
+      for (Node cell : cells) {
+        expected.add(cell.getTokenString());
+        if (cell.isLeaf())
+          expected.add(cell.getTokenString() + (char) Node.LEAF_BYTE);
+      }
+
+      PrefixTreeStrategy.CellTokenStream stream = new PrefixTreeStrategy.CellTokenStream(cells.iterator());
+      TermToBytesRefAttribute termAtt = stream.getAttribute(TermToBytesRefAttribute.class);
+      BytesRef bytes = termAtt.getBytesRef();
+      List<String> actual = new ArrayList<String>();
+      while (stream.incrementToken()) {
+        final int hash = termAtt.fillBytesRef();
+        assertEquals(bytes.hashCode(), hash);
+        actual.add(bytes.utf8ToString());
+      }
+      assertFalse(stream.incrementToken());
+      assertEquals(expected, actual);
+    }
+  }
+}
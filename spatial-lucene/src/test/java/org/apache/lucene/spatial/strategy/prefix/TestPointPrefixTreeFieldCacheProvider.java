@@ -0,0 +1,308 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.prefix;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.spatial.SpatialTestCase;
+import org.apache.lucene.spatial.base.context.SpatialContext;
+import org.apache.lucene.spatial.base.context.simple.SimpleSpatialContext;
+import org.apache.lucene.spatial.base.prefix.geohash.GeohashPrefixTree;
+import org.apache.lucene.spatial.base.shape.Point;
+import org.apache.lucene.spatial.strategy.SimpleSpatialFieldInfo;
+import org.apache.lucene.spatial.strategy.util.MappedPointFieldCache;
+import org.apache.lucene.spatial.strategy.util.PointFieldCache;
+import org.apache.lucene.spatial.strategy.util.ShapeFieldCache;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util._TestUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestPointPrefixTreeFieldCacheProvider extends SpatialTestCase {
+
+  @Test
+  public void testConcurrentGetCache() throws Exception {
+    SpatialContext ctx = SimpleSpatialContext.GEO_KM;
+    GeohashPrefixTree grid = new GeohashPrefixTree(ctx, 8);
+    RecursivePrefixTreeStrategy strategy = new RecursivePrefixTreeStrategy(grid);
+    SimpleSpatialFieldInfo fieldInfo = new SimpleSpatialFieldInfo("geo");
+    List<Point> points = new ArrayList<Point>();
+    for (int i = 0; i < 20; i++) {
+      Point p = ctx.makePoint(-170 + 17 * i, -80 + 8 * i);
+      points.add(p);
+      Document doc = new Document();
+      doc.add(strategy.createField(fieldInfo, p, true, false));
+      addDocument(doc);
+      if (i % 7 == 6)
+        commit();//a few segments
+    }
+    commit();
+
+    final PointPrefixTreeFieldCacheProvider provider = new PointPrefixTreeFieldCacheProvider(grid, "geo", 2);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (AtomicReaderContext leaf : getIndexReader().getTopReaderContext().leaves()) {
+        final AtomicReader reader = leaf.reader();
+        List<Future<ShapeFieldCache<Point>>> futures = new ArrayList<Future<ShapeFieldCache<Point>>>();
+        for (int i = 0; i < 8; i++) {
+          futures.add(executor.submit(new Callable<ShapeFieldCache<Point>>() {
+            @Override
+            public ShapeFieldCache<Point> call() throws Exception {
+              return provider.getCache(reader);
+            }
+          }));
+        }
+        ShapeFieldCache<Point> cache = futures.get(0).get();
+        for (Future<ShapeFieldCache<Point>> future : futures) {
+          assertSame(cache, future.get());//built once
+        }
+        assertSame(cache, provider.getCache(reader));
+        assertTrue(cache instanceof PointFieldCache);
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+          List<Point> docPoints = cache.getShapes(doc);
+          assertEquals(1, docPoints.size());
+          //merges needn't keep the docs in order; each point's y tells which it is
+          Point expected = points.get((int) Math.round((docPoints.get(0).getY() + 80) / 8));
+          assertEquals(expected.getX(), docPoints.get(0).getX(), 0.001);
+          assertEquals(expected.getY(), docPoints.get(0).getY(), 0.001);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testCachesSharedBySegmentReaders() throws Exception {
+    SpatialContext ctx = SimpleSpatialContext.GEO_KM;
+    GeohashPrefixTree grid = new GeohashPrefixTree(ctx, 8);
+    RecursivePrefixTreeStrategy strategy = new RecursivePrefixTreeStrategy(grid);
+    SimpleSpatialFieldInfo fieldInfo = new SimpleSpatialFieldInfo("geo");
+    for (int i = 0; i < 10; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", "" + i, Field.Store.NO));
+      doc.add(strategy.createField(fieldInfo, ctx.makePoint(10 * i - 50, i), true, false));
+      addDocument(doc);
+      if (i % 5 == 4)
+        commit();
+    }
+
+    PointPrefixTreeFieldCacheProvider provider = new PointPrefixTreeFieldCacheProvider(grid, "geo", 2);
+    Map<Object, ShapeFieldCache<Point>> cachesByCore = new HashMap<Object, ShapeFieldCache<Point>>();
+    for (AtomicReaderContext leaf : getIndexReader().getTopReaderContext().leaves()) {
+      cachesByCore.put(leaf.reader().getCoreCacheKey(), provider.getCache(leaf.reader()));
+    }
+
+    //a reopen that only deletes gets new segment readers of the same cores
+    deleteDocuments(new Term("id", "3"));
+    commit();
+    for (AtomicReaderContext leaf : getIndexReader().getTopReaderContext().leaves()) {
+      ShapeFieldCache<Point> cache = cachesByCore.get(leaf.reader().getCoreCacheKey());
+      if (cache != null)
+        assertSame(cache, provider.getCache(leaf.reader()));
+    }
+
+    //merged away cores are purged when they're closed
+    forceMerge(1);
+    commit();
+    List<AtomicReaderContext> leaves = getIndexReader().getTopReaderContext().leaves();
+    assertEquals(1, leaves.size());
+    assertEquals(9, leaves.get(0).reader().maxDoc());
+    provider.getCache(leaves.get(0).reader());
+    assertEquals(1, provider.size());
+  }
+
+  @Test
+  public void testCacheFiles() throws Exception {
+    SpatialContext ctx = SimpleSpatialContext.GEO_KM;
+    GeohashPrefixTree grid = new GeohashPrefixTree(ctx, 8);
+    File indexDir = _TestUtil.getTempDir("pointCacheIndex");
+    Directory dir = FSDirectory.open(indexDir);
+    try {
+      writeIndex(dir, grid, 0, IndexWriterConfig.OpenMode.CREATE);
+      DirectoryReader indexReader = DirectoryReader.open(dir);
+      try {
+        AtomicReader reader = indexReader.getTopReaderContext().leaves().get(0).reader();
+        PointPrefixTreeFieldCacheProvider provider = newPersistentProvider(grid);
+        PointFieldCache built = (PointFieldCache) provider.getCache(reader);
+        assertFalse(built instanceof MappedPointFieldCache);
+        File cacheDir = new File(indexDir, PointPrefixTreeFieldCacheProvider.CACHE_DIR_NAME);
+        assertEquals(1, cacheDir.listFiles().length);
+
+        //as after a restart
+        PointFieldCache mapped = (PointFieldCache) newPersistentProvider(grid).getCache(reader);
+        assertTrue(mapped instanceof MappedPointFieldCache);
+        assertEquals(built.size(), mapped.size());
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+          assertEquals(built.getStart(doc), mapped.getStart(doc));
+          assertEquals(built.getEnd(doc), mapped.getEnd(doc));
+        }
+        for (int i = 0; i < built.size(); i++) {
+          assertEquals(built.getX(i), mapped.getX(i), 0);
+          assertEquals(built.getY(i), mapped.getY(i), 0);
+        }
+
+        //a truncated file is rebuilt and rewritten
+        File[] files = cacheDir.listFiles();
+        RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+        raf.setLength(raf.length() - 8);
+        raf.close();
+        assertFalse(newPersistentProvider(grid).getCache(reader) instanceof MappedPointFieldCache);
+        assertTrue(newPersistentProvider(grid).getCache(reader) instanceof MappedPointFieldCache);
+
+        //another field's files are kept
+        assertTrue(new File(cacheDir, "_0.other.points").createNewFile());
+        assertTrue(new File(cacheDir, "_5.geo.points").createNewFile());
+        provider.deleteStaleFiles(indexReader);
+        assertEquals(2, cacheDir.listFiles().length);
+      } finally {
+        indexReader.close();
+      }
+    } finally {
+      dir.close();
+    }
+  }
+
+  @Test
+  public void testCacheFilesOfIndexesAlike() throws Exception {
+    SpatialContext ctx = SimpleSpatialContext.GEO_KM;
+    GeohashPrefixTree grid = new GeohashPrefixTree(ctx, 8);
+    //the same number of docs and segment names, but different points
+    Directory dir1 = FSDirectory.open(_TestUtil.getTempDir("pointCacheIndex1"));
+    Directory dir2 = FSDirectory.open(_TestUtil.getTempDir("pointCacheIndex2"));
+    try {
+      writeIndex(dir1, grid, 0, IndexWriterConfig.OpenMode.CREATE);
+      writeIndex(dir2, grid, 50, IndexWriterConfig.OpenMode.CREATE);
+      for (int i = 0; i < 2; i++) {//the second time, from the files
+        assertPoints(dir1, grid, 0, i == 1);
+        assertPoints(dir2, grid, 50, i == 1);
+      }
+
+      //an index recreated in the same directory
+      writeIndex(dir1, grid, 20, IndexWriterConfig.OpenMode.CREATE);
+      assertPoints(dir1, grid, 20, false);
+      assertPoints(dir1, grid, 20, true);
+    } finally {
+      dir1.close();
+      dir2.close();
+    }
+  }
+
+  private static PointPrefixTreeFieldCacheProvider newPersistentProvider(GeohashPrefixTree grid) {
+    PointPrefixTreeFieldCacheProvider provider = new PointPrefixTreeFieldCacheProvider(grid, "geo", 2);
+    provider.setPersistent(true);
+    return provider;
+  }
+
+  private static void writeIndex(Directory dir, GeohashPrefixTree grid, double offset,
+                                 IndexWriterConfig.OpenMode mode) throws IOException {
+    RecursivePrefixTreeStrategy strategy = new RecursivePrefixTreeStrategy(grid);
+    SimpleSpatialFieldInfo fieldInfo = new SimpleSpatialFieldInfo("geo");
+    IndexWriterConfig config = new IndexWriterConfig(TEST_VERSION_CURRENT, new WhitespaceAnalyzer(TEST_VERSION_CURRENT));
+    config.setOpenMode(mode);
+    IndexWriter writer = new IndexWriter(dir, config);
+    try {
+      for (int i = 0; i < 10; i++) {
+        Document doc = new Document();
+        if (i != 4)//one without
+          doc.add(strategy.createField(fieldInfo, grid.getSpatialContext().makePoint(offset + i, i), true, false));
+        writer.addDocument(doc);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static void assertPoints(Directory dir, GeohashPrefixTree grid, double offset, boolean mapped)
+      throws IOException {
+    DirectoryReader indexReader = DirectoryReader.open(dir);
+    try {
+      List<AtomicReaderContext> leaves = indexReader.getTopReaderContext().leaves();
+      assertEquals(1, leaves.size());
+      AtomicReader reader = leaves.get(0).reader();
+      ShapeFieldCache<Point> cache = newPersistentProvider(grid).getCache(reader);
+      assertEquals(mapped, cache instanceof MappedPointFieldCache);
+      for (int doc = 0; doc < reader.maxDoc(); doc++) {
+        List<Point> points = cache.getShapes(doc);
+        if (doc == 4) {
+          assertNull(points);
+          continue;
+        }
+        assertEquals(offset + doc, points.get(0).getX(), 0.001);
+        assertEquals(doc, points.get(0).getY(), 0.001);
+      }
+    } finally {
+      indexReader.close();
+    }
+  }
+
+  @Test
+  public void testWarm() throws Exception {
+    SpatialContext ctx = SimpleSpatialContext.GEO_KM;
+    GeohashPrefixTree grid = new GeohashPrefixTree(ctx, 8);
+    RecursivePrefixTreeStrategy strategy = new RecursivePrefixTreeStrategy(grid);
+    SimpleSpatialFieldInfo fieldInfo = new SimpleSpatialFieldInfo("geo");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Map<AtomicReader, ShapeFieldCache<Point>> warmed = new IdentityHashMap<AtomicReader, ShapeFieldCache<Point>>();
+      for (int round = 0; round < 3; round++) {
+        for (int i = 0; i < 5; i++) {
+          Document doc = new Document();
+          doc.add(strategy.createField(fieldInfo, ctx.makePoint(10 * i - 20, 5 * round), true, false));
+          addDocument(doc);
+        }
+        commit();//a new segment
+
+        List<AtomicReaderContext> leaves = getIndexReader().getTopReaderContext().leaves();
+        List<Future<ShapeFieldCache<Point>>> futures = strategy.warmFieldCache(fieldInfo, getIndexReader(), executor);
+        assertEquals(leaves.size(), futures.size());
+        for (int i = 0; i < leaves.size(); i++) {
+          AtomicReader reader = leaves.get(i).reader();
+          ShapeFieldCache<Point> cache = futures.get(i).get();
+          ShapeFieldCache<Point> previous = warmed.put(reader, cache);
+          if (previous != null)
+            assertSame(previous, cache);//not rebuilt
+          assertEquals(1, cache.getShapes(0).size());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
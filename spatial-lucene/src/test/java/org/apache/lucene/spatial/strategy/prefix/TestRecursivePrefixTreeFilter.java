@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.prefix;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.spatial.SpatialTestCase;
+import org.apache.lucene.spatial.base.context.SpatialContext;
+import org.apache.lucene.spatial.base.context.simple.SimpleSpatialContext;
+import org.apache.lucene.spatial.base.prefix.geohash.GeohashPrefixTree;
+import org.apache.lucene.spatial.base.shape.Shape;
+import org.apache.lucene.spatial.strategy.SimpleSpatialFieldInfo;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link RecursivePrefixTreeFilter}
+ */
+public class TestRecursivePrefixTreeFilter extends SpatialTestCase {
+
+  @Test
+  public void testLazyIteratorDividesCellsOnDemand() throws IOException {
+    SpatialContext ctx = SimpleSpatialContext.GEO_KM;
+    GeohashPrefixTree grid = new GeohashPrefixTree(ctx, 6);
+    RecursivePrefixTreeStrategy strategy = new RecursivePrefixTreeStrategy(grid);
+    SimpleSpatialFieldInfo fieldInfo = new SimpleSpatialFieldInfo("geo");
+    for (int i = 0; i < 2000; i++) {
+      Document doc = new Document();
+      doc.add(strategy.createField(fieldInfo,
+          ctx.makePoint(random().nextDouble() * 360 - 180, random().nextDouble() * 180 - 90), true, false));
+      addDocument(doc);
+    }
+    commit();
+    forceMerge(1);
+    AtomicReader reader = getIndexReader().getTopReaderContext().leaves().get(0).reader();
+    Shape queryShape = ctx.makeRect(-150, 150, -70, 70);
+
+    //all the matching docs, the eager way
+    SeekCountingReader eagerReader = new SeekCountingReader(reader);
+    List<Integer> expected = toList(newFilter(grid, queryShape, false)
+        .getDocIdSet(eagerReader.getTopReaderContext(), null).iterator());
+    final int eagerSeeks = eagerReader.seeks;
+    assertTrue(expected.size() > 0);
+
+    //the first doc only divides the cells down to it
+    SeekCountingReader lazyReader = new SeekCountingReader(reader);
+    AtomicReaderContext lazyCtx = lazyReader.getTopReaderContext();
+    RecursivePrefixTreeFilter lazyFilter = newFilter(grid, queryShape, true);
+    DocIdSetIterator iter = lazyFilter.getDocIdSet(lazyCtx, null).iterator();
+    assertEquals(expected.get(0).intValue(), iter.nextDoc());
+    assertTrue(lazyReader.seeks + " vs " + eagerSeeks, lazyReader.seeks * 8 < eagerSeeks);
+
+    //advancing near the end skips the cells before the target
+    lazyReader.seeks = 0;
+    int target = expected.get(expected.size() - 2) + 1;
+    iter = lazyFilter.getDocIdSet(lazyCtx, null).iterator();
+    assertEquals(expected.get(expected.size() - 1).intValue(), iter.advance(target));
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, iter.nextDoc());
+    assertTrue(lazyReader.seeks + " vs " + eagerSeeks, lazyReader.seeks * 4 < eagerSeeks);
+
+    //and exhausting it yields the same docs
+    assertEquals(expected, toList(lazyFilter.getDocIdSet(lazyCtx, null).iterator()));
+  }
+
+  @Test
+  public void testParallelTraversalFailureStopsWorkers() throws Exception {
+    SpatialContext ctx = SimpleSpatialContext.GEO_KM;
+    GeohashPrefixTree grid = new GeohashPrefixTree(ctx, 4);
+    RecursivePrefixTreeStrategy strategy = new RecursivePrefixTreeStrategy(grid);
+    SimpleSpatialFieldInfo fieldInfo = new SimpleSpatialFieldInfo("geo");
+    Document doc = new Document();
+    doc.add(strategy.createField(fieldInfo, ctx.makePoint(10, 10), true, false));
+    addDocument(doc);
+    commit();
+    AtomicReader reader = getIndexReader().getTopReaderContext().leaves().get(0).reader();
+
+    //the workers block in their first seek, as if on slow I/O that ignores interrupts, until the caller fails
+    final Thread caller = Thread.currentThread();
+    final CountDownLatch workersSeeking = new CountDownLatch(2);
+    final CountDownLatch never = new CountDownLatch(1);
+    SeekCountingReader failingReader = new SeekCountingReader(reader) {
+      @Override
+      void onSeek() {
+        if (Thread.currentThread() == caller) {
+          try {
+            workersSeeking.await();
+          } catch (InterruptedException e) {
+            throw new ThreadInterruptedException(e);
+          }
+          throw new IllegalStateException("seek failed");
+        }
+        workersSeeking.countDown();
+        try {
+          never.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      RecursivePrefixTreeFilter filter = newFilter(grid, ctx.makeRect(-180, 180, -90, 90), false);
+      filter.setExecutor(executor, 3);
+      try {
+        filter.getDocIdSet(failingReader.getTopReaderContext(), null);
+        fail();
+      } catch (IllegalStateException e) {
+        //expected
+      }
+      executor.shutdown();
+      assertTrue("workers still running", executor.awaitTermination(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private RecursivePrefixTreeFilter newFilter(GeohashPrefixTree grid, Shape queryShape, boolean lazy) {
+    RecursivePrefixTreeFilter filter = new RecursivePrefixTreeFilter(
+        "geo", grid, queryShape, grid.getMaxLevels() - 2, grid.getMaxLevels());
+    filter.setLazy(lazy);
+    return filter;
+  }
+
+  private static List<Integer> toList(DocIdSetIterator iter) throws IOException {
+    List<Integer> docs = new ArrayList<Integer>();
+    for (int doc = iter.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iter.nextDoc()) {
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  /** Counts the seeks of the TermsEnums of its terms. */
+  private static class SeekCountingReader extends FilterAtomicReader {
+    int seeks;
+
+    SeekCountingReader(AtomicReader in) {
+      super(in);
+    }
+
+    /** Called before each seek. */
+    void onSeek() {
+    }
+
+    @Override
+    public Fields fields() throws IOException {
+      return new FilterFields(super.fields()) {
+        @Override
+        public Terms terms(String field) throws IOException {
+          Terms terms = super.terms(field);
+          return terms == null ? null : new FilterTerms(terms) {
+            @Override
+            public TermsEnum iterator(TermsEnum reuse) throws IOException {
+              return new FilterTermsEnum(super.iterator(null)) {
+                @Override
+                public boolean seekExact(BytesRef text, boolean useCache) throws IOException {
+                  onSeek();
+                  seeks++;
+                  return super.seekExact(text, useCache);
+                }
+
+                @Override
+                public SeekStatus seekCeil(BytesRef text, boolean useCache) throws IOException {
+                  onSeek();
+                  seeks++;
+                  return super.seekCeil(text, useCache);
+                }
+              };
+            }
+          };
+        }
+      };
+    }
+  }
+}
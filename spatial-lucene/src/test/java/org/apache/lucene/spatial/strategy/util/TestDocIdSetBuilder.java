@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DocIdSetBuilder}
+ */
+public class TestDocIdSetBuilder {
+
+  @Test
+  public void testSparse() throws IOException {
+    DocIdSetBuilder builder = new DocIdSetBuilder(100000);
+    for (int doc : new int[]{50, 7, 9000, 7, 3}) {
+      builder.add(doc);
+    }
+    DocIdSet set = builder.build();
+    assertTrue(set instanceof SortedIntDocIdSet);
+    assertEquals(4, builder.size());
+    assertEquals(4, ((SortedIntDocIdSet) set).size());
+
+    DocIdSetIterator iter = set.iterator();
+    assertEquals(3, iter.nextDoc());
+    assertEquals(50, iter.advance(8));
+    assertEquals(9000, iter.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, iter.nextDoc());
+  }
+
+  @Test
+  public void testDense() throws IOException {
+    DocIdSetBuilder builder = new DocIdSetBuilder(1000, 10);
+    for (int doc = 999; doc >= 0; doc -= 2) {
+      builder.add(doc);
+      builder.add(doc);
+    }
+    DocIdSet set = builder.build();
+    assertTrue(set instanceof OpenBitSet);
+    assertEquals(500, builder.size());
+    assertEquals(500, ((OpenBitSet) set).cardinality());
+    assertEquals(1, set.iterator().nextDoc());
+  }
+
+  @Test
+  public void testDuplicatesDontCountTowardsThreshold() throws IOException {
+    DocIdSetBuilder builder = new DocIdSetBuilder(1000, 10);
+    for (int i = 0; i < 100; i++) {//as if each doc were reached through many cells
+      for (int doc = 0; doc < 9; doc++) {
+        builder.add(doc * 100);
+      }
+    }
+    DocIdSet set = builder.build();
+    assertTrue(set instanceof SortedIntDocIdSet);
+    assertEquals(9, builder.size());
+
+    builder = new DocIdSetBuilder(1000, 10);
+    for (int i = 0; i < 10; i++) {
+      builder.add(i);
+      builder.add(i);
+    }
+    assertTrue(builder.build() instanceof OpenBitSet);
+    assertEquals(10, builder.size());
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.spatial.SpatialTestCase;
+import org.apache.lucene.spatial.base.shape.simple.PointImpl;
+import org.apache.lucene.util._TestUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteOrder;
+
+/**
+ * Tests for {@link MappedPointFieldCache}
+ */
+public class TestMappedPointFieldCache extends SpatialTestCase {
+
+  @Test
+  public void testWriteAndOpen() throws Exception {
+    File dir = _TestUtil.getTempDir("mappedPointCache");
+    dir.mkdirs();
+    File file = new File(dir, "_0.geo" + MappedPointFieldCache.EXTENSION);
+    PointFieldCache cache = newCache();
+    assertTrue(MappedPointFieldCache.write(cache, file, "sig"));
+    assertEquals(1, dir.listFiles().length);//no temporary file is left
+
+    assertNull(MappedPointFieldCache.open(file, "other"));
+    MappedPointFieldCache mapped = MappedPointFieldCache.open(file, "sig");
+    assertEquals(cache.size(), mapped.size());
+    for (int doc = 0; doc < cache.getMaxDoc(); doc++) {
+      assertEquals(cache.getStart(doc), mapped.getStart(doc));
+      assertEquals(cache.getEnd(doc), mapped.getEnd(doc));
+    }
+    for (int i = 0; i < cache.size(); i++) {
+      assertEquals(cache.getX(i), mapped.getX(i), 0);
+      assertEquals(cache.getY(i), mapped.getY(i), 0);
+    }
+  }
+
+  @Test
+  public void testOtherByteOrderNotOpened() throws Exception {
+    File dir = _TestUtil.getTempDir("mappedPointCache");
+    dir.mkdirs();
+    File file = new File(dir, "_0.geo" + MappedPointFieldCache.EXTENSION);
+    ByteOrder otherOrder =
+        ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    assertTrue(MappedPointFieldCache.write(newCache(), file, "sig", otherOrder));
+    assertNull(MappedPointFieldCache.open(file, "sig"));
+
+    //rewritten in place
+    assertTrue(MappedPointFieldCache.write(newCache(), file, "sig"));
+    assertNotNull(MappedPointFieldCache.open(file, "sig"));
+  }
+
+  private static PointFieldCache newCache() {
+    PointFieldCache cache = new PointFieldCache(new int[]{2, 0, 1}, 2);
+    cache.add(0, new PointImpl(1.5, -2.25));
+    cache.add(2, new PointImpl(-180, 90));
+    cache.add(0, new PointImpl(3, 4));
+    cache.finishLoading();
+    return cache;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.spatial.base.shape.Point;
+import org.apache.lucene.spatial.base.shape.simple.PointImpl;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link PointFieldCache}
+ */
+public class TestPointFieldCache {
+
+  @Test
+  public void testSameAsListCache() {
+    Random random = new Random(7);
+    final int maxDoc = 200;
+    ShapeFieldCache<Point> listCache = new ShapeFieldCache<Point>(maxDoc, 2);
+    //added by term, so not in doc order
+    final int numPoints = 500;
+    int[] docs = new int[numPoints];
+    int[] pointCounts = new int[maxDoc];
+    for (int i = 0; i < numPoints; i++) {
+      docs[i] = random.nextInt(maxDoc / 2) * 2;//odd docs have none
+      pointCounts[docs[i]]++;
+    }
+    PointFieldCache cache = new PointFieldCache(pointCounts, 2);
+    for (int i = 0; i < numPoints; i++) {
+      Point p = new PointImpl(random.nextInt(360) - 180, random.nextInt(180) - 90);
+      listCache.add(docs[i], p);
+      cache.add(docs[i], p);
+    }
+    cache.finishLoading();
+
+    assertEquals(numPoints, cache.size());
+    for (int doc = 0; doc < maxDoc; doc++) {
+      List<Point> expected = listCache.getShapes(doc);
+      if (expected == null) {
+        assertEquals(cache.getStart(doc), cache.getEnd(doc));
+        assertNull(cache.getShapes(doc));
+        continue;
+      }
+      List<Point> actual = new ArrayList<Point>();
+      for (int i = cache.getStart(doc); i < cache.getEnd(doc); i++) {
+        actual.add(new PointImpl(cache.getX(i), cache.getY(i)));
+      }
+      assertEquals(expected, actual);//in the added order
+      assertEquals(expected, cache.getShapes(doc));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testMorePointsThanCounted() {
+    PointFieldCache cache = new PointFieldCache(new int[]{1, 0}, 2);
+    cache.add(0, new PointImpl(1, 2));
+    cache.add(0, new PointImpl(3, 4));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testFewerPointsThanCounted() {
+    PointFieldCache cache = new PointFieldCache(new int[]{1, 2}, 2);
+    cache.add(1, new PointImpl(1, 2));
+    cache.add(0, new PointImpl(3, 4));
+    cache.finishLoading();
+  }
+}
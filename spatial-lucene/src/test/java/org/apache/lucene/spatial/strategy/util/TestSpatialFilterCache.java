@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.lucene.spatial.strategy.util;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.spatial.SpatialTestCase;
+import org.apache.lucene.util.Bits;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link SpatialFilterCache}
+ */
+public class TestSpatialFilterCache extends SpatialTestCase {
+
+  @Test
+  public void testCoreClosedWhileComputing() throws IOException {
+    for (int i = 0; i < 5; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", "" + i, Field.Store.NO));
+      addDocument(doc);
+    }
+    commit();
+    AtomicReaderContext leaf = getIndexReader().getTopReaderContext().leaves().get(0);
+    final SpatialFilterCache cache = new SpatialFilterCache(1024 * 1024);
+
+    //as if the core were closed (e.g. merged away) after the miss, before the result is put
+    final Filter filter = new QueryWrapperFilter(new MatchAllDocsQuery());
+    Filter closingFilter = new Filter() {
+      @Override
+      public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        cache.purge(context.reader().getCoreCacheKey());
+        return filter.getDocIdSet(context, acceptDocs);
+      }
+    };
+    assertNotNull(cache.wrap(closingFilter).getDocIdSet(leaf, null));
+    assertEquals(0, cache.size());
+
+    cache.wrap(filter).getDocIdSet(leaf, null);
+    assertEquals(1, cache.size());
+    cache.wrap(filter).getDocIdSet(leaf, null);
+    assertEquals(1, cache.getHitCount());
+  }
+}
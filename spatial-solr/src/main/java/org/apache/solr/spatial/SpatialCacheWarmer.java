@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.spatial;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.spatial.prefix.PrefixTreeFieldType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the spatial field caches of a new searcher's new segments before it's registered, so that the first
+ * distance query after a commit needn't. The caches are built on a pool of "threads" (default 1); the searcher waits
+ * for them. The fields are those named by a comma separated "fields", or else all the prefix tree fields the schema
+ * declares (not dynamic ones). Register it for both events:
+ * <pre>
+ *   &lt;listener event="newSearcher" class="org.apache.solr.spatial.SpatialCacheWarmer"&gt;
+ *     &lt;int name="threads"&gt;2&lt;/int&gt;
+ *   &lt;/listener&gt;
+ *   &lt;listener event="firstSearcher" class="org.apache.solr.spatial.SpatialCacheWarmer"/&gt;
+ * </pre>
+ */
+public class SpatialCacheWarmer extends AbstractSolrEventListener {
+  static final Logger log = LoggerFactory.getLogger(SpatialCacheWarmer.class);
+
+  private String[] fieldNames;//null for all
+  private ExecutorService executor;
+
+  public SpatialCacheWarmer(SolrCore core) {
+    super(core);
+  }
+
+  @Override
+  public void init(NamedList args) {
+    super.init(args);
+    Object fields = args.get("fields");
+    if (fields != null)
+      fieldNames = fields.toString().trim().split("\\s*,\\s*");
+    Object threads = args.get("threads");
+    executor = Executors.newFixedThreadPool(threads != null ? Integer.parseInt(threads.toString()) : 1);
+    getCore().addCloseHook(new CloseHook() {
+      @Override
+      public void preClose(SolrCore core) {
+        executor.shutdownNow();
+      }
+
+      @Override
+      public void postClose(SolrCore core) {
+      }
+    });
+  }
+
+  @Override
+  public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    long startTime = System.currentTimeMillis();
+    IndexReader reader = newSearcher.getIndexReader();
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (SchemaField field : getFields(newSearcher.getSchema())) {
+      futures.addAll(((PrefixTreeFieldType<?>) field.getType()).warmFieldCache(field, reader, executor));
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        SolrException.log(log, "Error warming spatial field cache", e.getCause());
+      }
+    }
+    log.info("Warmed spatial field caches of " + newSearcher + " in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  private List<SchemaField> getFields(IndexSchema schema) {
+    List<SchemaField> fields = new ArrayList<SchemaField>();
+    if (fieldNames == null) {
+      for (SchemaField field : schema.getFields().values()) {
+        if (field.getType() instanceof PrefixTreeFieldType && field.indexed())
+          fields.add(field);
+      }
+    } else {
+      for (String name : fieldNames) {
+        SchemaField field = schema.getField(name);
+        if (!(field.getType() instanceof PrefixTreeFieldType))
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Not a prefix tree field: " + name);
+        fields.add(field);
+      }
+    }
+    return fields;
+  }
+}
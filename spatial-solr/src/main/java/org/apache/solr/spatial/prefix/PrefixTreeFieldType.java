@@ -17,16 +17,22 @@
 
 package org.apache.solr.spatial.prefix;
 
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.spatial.base.prefix.SpatialPrefixTree;
 import org.apache.lucene.spatial.base.prefix.SpatialPrefixTreeFactory;
+import org.apache.lucene.spatial.base.shape.Point;
 import org.apache.lucene.spatial.strategy.SimpleSpatialFieldInfo;
 import org.apache.lucene.spatial.strategy.prefix.PrefixTreeStrategy;
+import org.apache.lucene.spatial.strategy.util.ShapeFieldCache;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.spatial.MapListener;
 import org.apache.solr.spatial.SpatialFieldType;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 public abstract class PrefixTreeFieldType<T extends PrefixTreeStrategy> extends SpatialFieldType<SimpleSpatialFieldInfo> {
 
@@ -53,6 +59,14 @@ public abstract class PrefixTreeFieldType<T extends PrefixTreeStrategy> extends
     if (v != null)
       strat.setDefaultFieldValuesArrayLen(Integer.parseInt(v));
 
+    v = args.remove("maxCells");
+    if (v != null)
+      strat.setMaxCells(Integer.parseInt(v));
+
+    v = args.remove("persistFieldCaches");
+    if (v != null)
+      strat.setPersistFieldCaches(Boolean.parseBoolean(v));
+
     spatialStrategy = strat;
 
     log.info(this.toString()+" strat: "+strat+" maxLevels: "+ grid.getMaxLevels());//TODO output maxDetailKm
@@ -60,6 +74,14 @@ public abstract class PrefixTreeFieldType<T extends PrefixTreeStrategy> extends
 
   protected abstract T initStrategy(IndexSchema schema, Map<String, String> args);
 
+  /**
+   * Builds on the executor the field's caches for the segments of the reader that don't have them yet; see
+   * {@link PrefixTreeStrategy#warmFieldCache(SimpleSpatialFieldInfo, IndexReader, Executor)}.
+   */
+  public List<Future<ShapeFieldCache<Point>>> warmFieldCache(SchemaField field, IndexReader reader, Executor executor) {
+    return ((PrefixTreeStrategy) spatialStrategy).warmFieldCache(getFieldInfo(field), reader, executor);
+  }
+
   @Override
   protected SimpleSpatialFieldInfo getFieldInfo(SchemaField field) {
     return new SimpleSpatialFieldInfo(field.getName());
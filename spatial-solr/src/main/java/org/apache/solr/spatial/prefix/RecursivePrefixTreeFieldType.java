@@ -26,7 +26,13 @@ public class RecursivePrefixTreeFieldType extends PrefixTreeFieldType<RecursiveP
 
   @Override
   protected RecursivePrefixTreeStrategy initStrategy(IndexSchema schema, Map<String, String> args) {
-    return new RecursivePrefixTreeStrategy(grid);
+    RecursivePrefixTreeStrategy strat = new RecursivePrefixTreeStrategy(grid);
+
+    String v = args.remove("scanTermsThreshold");
+    if (v != null)
+      strat.setScanTermsThreshold(Integer.parseInt(v));
+
+    return strat;
   }
 }
 